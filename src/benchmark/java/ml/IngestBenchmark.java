@@ -0,0 +1,64 @@
+package ml;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and adding single training rows.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark {
+    private static final int ROWS = 1024;
+
+    @Param({"4", "32"})
+    public int width;
+
+    @Param({"encog", "dl4j"})
+    public String framework;
+
+    private SyntheticData data;
+    private MLModel<?> model;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createData() {
+        data = new SyntheticData(width, ROWS);
+    }
+
+    @Setup(Level.Iteration)
+    public void createModel() {
+        model = MLModel.create("ingest", data.types(), SyntheticData.OUTPUT, Collections.singletonMap("framework", framework));
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeModel() {
+        MLModel.remove("ingest");
+    }
+
+    @Benchmark
+    public void asRow(Blackhole blackhole) {
+        blackhole.consume(model.asRow(nextInputs(), null));
+    }
+
+    @Benchmark
+    public void add() {
+        int row = next++ & (ROWS - 1);
+        model.add(data.inputs.get(row), data.outputs.get(row));
+    }
+
+    private Map<String, Object> nextInputs() {
+        return data.inputs.get(next++ & (ROWS - 1));
+    }
+}
@@ -0,0 +1,65 @@
+package ml;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * Predictions of a trained model from rows that are already encoded, one at a time and as one chunk.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictBenchmark {
+    private static final int ROWS = 1024;
+
+    @Param({"4", "32"})
+    public int width;
+
+    @Param({"encog", "dl4j"})
+    public String framework;
+
+    private MLModel<double[]> model;
+    private MLModel.Snapshot snapshot;
+    private List<double[]> rows;
+    private int next;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void train() {
+        SyntheticData data = new SyntheticData(width, ROWS);
+        model = (MLModel<double[]>) data.model("predict", map("framework", framework, "epochs", 10));
+        model.train();
+        snapshot = model.readyToPredict();
+        rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            rows.add(model.asRow(data.inputs.get(i), null));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void remove() {
+        MLModel.remove("predict");
+    }
+
+    @Benchmark
+    public Object doPredict() {
+        return model.doPredict(snapshot, rows.get(next++ & (ROWS - 1)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object[] doPredictChunk() {
+        return model.doPredict(snapshot, rows);
+    }
+}
@@ -0,0 +1,88 @@
+package ml;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Result;
+import org.neo4j.kernel.impl.proc.Procedures;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * Procedure calls through Cypher on an embedded database, including parameter conversion and result streaming.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcedureBenchmark {
+    private static final int ROWS = 1024;
+
+    @Param({"4", "32"})
+    public int width;
+
+    @Param({"encog", "dl4j"})
+    public String framework;
+
+    private GraphDatabaseService db;
+    private SyntheticData data;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class).registerProcedure(ML.class);
+        data = new SyntheticData(width, ROWS);
+        db.execute("CALL ml.create('procedure',{types},{output},{config})",
+                map("types", data.types(), "output", SyntheticData.OUTPUT, "config", map("framework", framework, "epochs", 10))).close();
+        db.execute("CALL ml.addBatch('procedure',{inputs},{outputs})", map("inputs", data.inputs, "outputs", data.outputs)).close();
+        db.execute("CALL ml.train('procedure')").close();
+        // a second model that only takes rows, so adding doesn't retrain the predicted one
+        db.execute("CALL ml.create('procedure-add',{types},{output},{config})",
+                map("types", data.types(), "output", SyntheticData.OUTPUT, "config", map("framework", framework))).close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.execute("CALL ml.remove('procedure')").close();
+        db.execute("CALL ml.remove('procedure-add')").close();
+        db.shutdown();
+    }
+
+    @Benchmark
+    public void predict(Blackhole blackhole) {
+        consume(blackhole, db.execute("CALL ml.predict('procedure',{inputs})", map("inputs", nextInputs())));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void predictBatch(Blackhole blackhole) {
+        consume(blackhole, db.execute("CALL ml.predictBatch('procedure',{inputs})", map("inputs", data.inputs)));
+    }
+
+    @Benchmark
+    public void add(Blackhole blackhole) {
+        int row = next++ & (ROWS - 1);
+        consume(blackhole, db.execute("CALL ml.add('procedure-add',{inputs},{output})", map("inputs", data.inputs.get(row), "output", data.outputs.get(row))));
+    }
+
+    private Map<String, Object> nextInputs() {
+        return data.inputs.get(next++ & (ROWS - 1));
+    }
+
+    private static void consume(Blackhole blackhole, Result result) {
+        try (Result r = result) {
+            while (r.hasNext()) blackhole.consume(r.next());
+        }
+    }
+}
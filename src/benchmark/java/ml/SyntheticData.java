@@ -0,0 +1,61 @@
+package ml;
+
+import java.util.*;
+
+/**
+ * Reproducible dataset of {@code width} float inputs and a class output that depends linearly on them.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class SyntheticData {
+    static final String OUTPUT = "label";
+
+    final int width;
+    final List<Map<String, Object>> inputs;
+    final List<Object> outputs;
+
+    SyntheticData(int width, int size) {
+        this.width = width;
+        this.inputs = new ArrayList<>(size);
+        this.outputs = new ArrayList<>(size);
+        Random random = new Random(42);
+        double[] weights = new double[width];
+        for (int col = 0; col < width; col++) {
+            weights[col] = random.nextGaussian();
+        }
+        for (int row = 0; row < size; row++) {
+            Map<String, Object> input = new HashMap<>(width * 2);
+            double sum = 0;
+            for (int col = 0; col < width; col++) {
+                double value = random.nextDouble();
+                input.put(column(col), value);
+                sum += weights[col] * (value - 0.5);
+            }
+            inputs.add(input);
+            outputs.add(sum > 0 ? "positive" : "negative");
+        }
+    }
+
+    static String column(int col) {
+        return "x" + col;
+    }
+
+    Map<String, String> types() {
+        Map<String, String> types = new HashMap<>();
+        for (int col = 0; col < width; col++) {
+            types.put(column(col), "float");
+        }
+        types.put(OUTPUT, "class");
+        return types;
+    }
+
+    /**
+     * @return a new model named {@code name} that holds all rows of the dataset
+     */
+    MLModel<?> model(String name, Map<String, Object> config) {
+        MLModel<?> model = MLModel.create(name, types(), OUTPUT, config);
+        model.addBatch(inputs, outputs);
+        return model;
+    }
+}
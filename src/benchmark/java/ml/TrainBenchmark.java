@@ -0,0 +1,49 @@
+package ml;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * One training run over all rows of a synthetic dataset, without publishing the result.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainBenchmark {
+    @Param({"4", "32"})
+    public int width;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    @Param({"encog", "dl4j"})
+    public String framework;
+
+    private MLModel<?> model;
+    private int rows;
+
+    @Setup(Level.Trial)
+    public void createModel() {
+        model = new SyntheticData(width, size).model("train", map("framework", framework, "epochs", 10));
+        rows = model.rows.size(); // merges the buffered rows, like MLModel#train
+    }
+
+    @TearDown(Level.Trial)
+    public void remove() {
+        MLModel.remove("train");
+    }
+
+    @Benchmark
+    public MLModel.Snapshot doTrain() {
+        return model.doTrain(new MLModel.Training(rows, model.config, model.methodName, null, null));
+    }
+}
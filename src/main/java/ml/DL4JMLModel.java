@@ -1,12 +1,8 @@
 package ml;
 
-import org.datavec.api.records.metadata.RecordMetaData;
-import org.datavec.api.records.reader.impl.collection.ListStringRecordReader;
-import org.datavec.api.split.ListStringSplit;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
-import org.deeplearning4j.eval.meta.Prediction;
 import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -15,7 +11,8 @@ import org.deeplearning4j.nn.conf.layers.DenseLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
-import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.checkutil.NDArrayCreationUtil;
@@ -24,14 +21,21 @@ import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.SplitTestAndTrain;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.dataset.api.preprocessor.NormalizerMinMaxScaler;
+import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 import org.nd4j.linalg.util.NDArrayUtil;
+import org.nd4j.nativeblas.NativeOpsHolder;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.helpers.collection.MapUtil;
 import result.VirtualNode;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -39,58 +43,156 @@ import java.util.stream.Collectors;
  * @author mh
  * @since 23.07.17
  */
-public class DL4JMLModel extends MLModel<List<String>> {
-    private MultiLayerNetwork model;
+public class DL4JMLModel extends MLModel<double[]> {
+    private static int nd4jThreads;
+
+    private static class Trained extends Snapshot {
+        final MultiLayerNetwork model;
+        final NormalizerMinMaxScaler normalizer;
+        /** Output classes in the order of the network outputs, rows added later may add classes to the dictionary. */
+        final List<String> labels;
+        private final long offHeapBytes;
+        /**
+         * The network keeps the input and activations of a forward pass in its layers, so concurrent predictions
+         * borrow one of at most {@link #REPLICAS} copies, the trained network being the first.
+         */
+        private final BlockingQueue<MultiLayerNetwork> replicas = new ArrayBlockingQueue<>(REPLICAS);
+        private final AtomicInteger created = new AtomicInteger(1);
+        private volatile boolean closed;
+
+        /**
+         * @param updaterState size of the updater state the network keeps after training, 0 if it was not trained here
+         * @param metrics evaluation of the held back rows, empty if the model was loaded from disk
+         */
+        Trained(int trainingSets, double validationError, MultiLayerNetwork model, NormalizerMinMaxScaler normalizer, List<String> labels, long updaterState, Map<String, Object> metrics) {
+            super(trainingSets, validationError, metrics);
+            this.model = model;
+            this.normalizer = normalizer;
+            this.labels = labels;
+            this.offHeapBytes = (model.numParams() * REPLICAS + updaterState + normalizer.getMin().length() + normalizer.getMax().length()) * Nd4j.sizeOfDataType();
+            this.replicas.add(model);
+        }
+
+        @Override
+        long offHeapBytes() {
+            return offHeapBytes;
+        }
+
+        /**
+         * Forward pass on a borrowed copy of the network, concurrent single rows are still better predicted as one
+         * batch by a {@link PredictionCoalescer}.
+         */
+        INDArray output(INDArray features) {
+            MultiLayerNetwork replica = borrow();
+            try {
+                return replica.output(features);
+            } finally {
+                if (!closed) replicas.offer(replica);
+            }
+        }
+
+        private MultiLayerNetwork borrow() {
+            MultiLayerNetwork replica = replicas.poll();
+            if (replica != null) return replica;
+            if (created.getAndUpdate(n -> n < REPLICAS ? n + 1 : n) < REPLICAS) return model.clone();
+            try {
+                while ((replica = replicas.poll(BORROW_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                    // a prediction that still got this snapshot after it was replaced, the pool isn't refilled anymore
+                    if (closed) return model.clone();
+                }
+                return replica;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a network to predict on", e);
+            }
+        }
+
+        /**
+         * Drops the copies of the network, copies that are still in use are dropped when they are returned.
+         */
+        @Override
+        void close() {
+            closed = true;
+            replicas.clear();
+        }
+    }
+
+    /** Copies of a trained network predictions run on at once. */
+    static final int REPLICAS = Runtime.getRuntime().availableProcessors();
+    private static final long BORROW_MILLIS = 10;
 
     public DL4JMLModel(String name, Map<String, String> types, String output, Map<String, Object> config) {
         super(name, types, output, config);
     }
 
     @Override
-    protected List<String> asRow(Map<String, Object> inputs, Object output) {
-        List<String> row = new ArrayList<>(inputs.size() + (output == null ? 0 : 1));
-        for (String k : inputs.keySet()) {
-            row.add(offsets.get(k), inputs.get(k).toString());
+    protected double[] asRow(Map<String, Object> inputs, Object output) {
+        return encoder.encode(inputs);
+    }
+
+    @Override
+    protected double[] asRow(Object[] inputs) {
+        return encoder.encode(inputs);
+    }
+
+    @Override
+    protected Object doPredict(Snapshot snapshot, double[] line) {
+        Trained trained = (Trained) snapshot;
+        INDArray features = Nd4j.create(line, new int[]{1, line.length});
+        trained.normalizer.transform(features);
+        return decode(trained, trained.output(features), 0);
+    }
+
+    @Override
+    protected Object[] doPredict(Snapshot snapshot, List<double[]> lines) {
+        Trained trained = (Trained) snapshot;
+        int numInputs = encoder.width();
+        double[] data = new double[lines.size() * numInputs];
+        for (int i = 0; i < lines.size(); i++) {
+            System.arraycopy(lines.get(i), 0, data, i * numInputs, numInputs);
         }
-        if (output != null) {
-            row.add(offsets.get(this.output), output.toString());
+        INDArray features = Nd4j.create(data, new int[]{lines.size(), numInputs});
+        trained.normalizer.transform(features);
+        INDArray prediction = trained.output(features);
+        Object[] result = new Object[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = decode(trained, prediction, i);
         }
-        return row;
+        return result;
     }
 
+    /**
+     * One forward pass over all rows of a batch.
+     */
     @Override
-    protected Object doPredict(List<String> line) {
-        try {
-            ListStringSplit input = new ListStringSplit(Collections.singletonList(line));
-            ListStringRecordReader rr = new ListStringRecordReader();
-            rr.initialize(input);
-            DataSetIterator iterator = new RecordReaderDataSetIterator(rr, 1);
-
-            DataSet ds = iterator.next();
-            INDArray prediction = model.output(ds.getFeatures());
-
-            DataType outputType = types.get(this.output);
-            switch (outputType) {
-                case _float : return prediction.getDouble(0);
-                case _class: {
-                    int numClasses = 2;
-                    double max = 0;
-                    int maxIndex = -1;
-                    for (int i=0;i<numClasses;i++) {
-                        if (prediction.getDouble(i) > max) {maxIndex = i; max = prediction.getDouble(i);}
-                    }
-                    return maxIndex;
-//                    return prediction.getInt(0,1); // numberOfClasses
+    protected boolean predictsBatched() {
+        return true;
+    }
+
+    private Object decode(Trained trained, INDArray prediction, int row) {
+        DataType outputType = types.get(this.output);
+        switch (outputType) {
+            case _float : return prediction.getDouble(row, 0);
+            case _class: {
+                List<String> labels = trained.labels;
+                double max = 0;
+                int maxIndex = -1;
+                for (int i=0;i<labels.size();i++) {
+                    if (prediction.getDouble(row, i) > max) {maxIndex = i; max = prediction.getDouble(row, i);}
                 }
-                default: throw new IllegalArgumentException("Output type not yet supported "+outputType);
+                return maxIndex == -1 ? null : labels.get(maxIndex);
             }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            default: throw new IllegalArgumentException("Output type not yet supported "+outputType);
         }
     }
 
     @Override
-    protected void doTrain() {
+    protected Snapshot doTrain(Training training) {
+        int size = training.size;
+        Config config = training.config;
+        limitThreads();
+        ParameterAveraging parallel = null;
+        long reserved = 0;
         try {
             long seed = config.seed.get();
             double learningRate = config.learningRate.get();
@@ -101,106 +203,229 @@ public class DL4JMLModel extends MLModel<List<String>> {
             int outputOffset = offsets.get(output); // last column
             int numHiddenNodes = config.hidden.get();
             double trainPercent = config.trainPercent.get();
-            int batchSize = rows.size(); // full dataset size
-
-            Map<String,Set<String>> classes = new HashMap<>();
-            types.entrySet().stream()
-                    .filter(e -> e.getValue() == DataType._class)
-                    .map(e -> new HashMap.SimpleEntry<>(e.getKey(), offsets.get(e.getKey())))
-                    .forEach(e -> classes.put(e.getKey(),rows.parallelStream().map(r -> r.get(e.getValue())).distinct().collect(Collectors.toSet())));
-
-            int numberOfClasses = (int)classes.get("output").size();
-            System.out.println("labels = " + classes);
 
-            ListStringSplit input = new ListStringSplit(rows);
-            ListStringRecordReader rr = new ListStringRecordReader();
-            rr.initialize(input);
-            RecordReaderDataSetIterator iterator = new RecordReaderDataSetIterator(rr, batchSize, outputOffset, numberOfClasses);
-
-            iterator.setCollectMetaData(true);  // Instruct the iterator to collect metadata, and store it in the DataSet objects
-            DataSet allData = iterator.next();
-            allData.shuffle(seed);
-            SplitTestAndTrain testAndTrain = allData.splitTestAndTrain(trainPercent);  //Use 65% of data for training
+            if (types.get(output) != DataType._class) {
+                throw new IllegalArgumentException("Output type not yet supported "+types.get(output));
+            }
+            RowStore.Dictionary labels = rows.dictionary(outputOffset);
+            int numberOfClasses = labels.size();
 
-            DataSet trainingData = testAndTrain.getTrain();
-            DataSet testData = testAndTrain.getTest();
+            MultiLayerNetwork model = new MultiLayerNetwork(configuration(seed, learningRate, numInputs, numHiddenNodes, numberOfClasses));
+            model.init();
+            model.setListeners(new CancellationListener(training));
+            int workers = Math.max(1, TrainingGovernor.nd4jWorkers(config.workers.get()));
+            int batchSize = config.batchSize.get();
+            // the DataSet and its train/test split or two batches, and the replicas with their updater state
+            long rowsInMemory = batchSize > 0 ? batchSize : size;
+            long bytes = Nd4j.sizeOfDataType() * (2 * rowsInMemory * (numInputs + numberOfClasses) + (workers > 1 ? 2L * workers * model.numParams() : 0));
+            reserve(0, bytes);
+            reserved = bytes;
+            if (workers > 1) {
+                parallel = new ParameterAveraging(model, workers, Math.max(1, config.averagingFrequency.get()));
+            }
 
             //Normalize data as per basic CSV example
 //            NormalizerStandardize normalizer = new NormalizerStandardize();
             NormalizerMinMaxScaler normalizer = new NormalizerMinMaxScaler();
-            normalizer.fitLabel(true);
-            normalizer.fit(trainingData);           //Collect the statistics (mean/stdev) from the training data. This does not modify the input data
-            normalizer.transform(trainingData);     //Apply normalization to the training data
-            normalizer.transform(testData);         //Apply normalization to the test data. This is using statistics calculated from the *training* set
-
-            //Let's view the example metadata in the training and test sets:
-            List<RecordMetaData> trainMetaData = trainingData.getExampleMetaData(RecordMetaData.class);
-            List<RecordMetaData> testMetaData = testData.getExampleMetaData(RecordMetaData.class);
-
-            //Let's show specifically which examples are in the training and test sets, using the collected metadata
-//            System.out.println("  +++++ Training Set Examples MetaData +++++");
-//            String format = "%-20s\t%s";
-//            for(RecordMetaData recordMetaData : trainMetaData){
-//                System.out.println(String.format(format, recordMetaData.getLocation(), recordMetaData.getURI()));
-//                //Also available: recordMetaData.getReaderClass()
-//            }
-//            System.out.println("\n\n  +++++ Test Set Examples MetaData +++++");
-//            for(RecordMetaData recordMetaData : testMetaData){
-//                System.out.println(recordMetaData.getLocation());
-//            }
-
-
-
-            MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
-                    .seed(seed)
-                    .iterations(1)
-                    .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
-                    .learningRate(learningRate)
-                    .updater(Updater.NESTEROVS).momentum(0.9)
-                    .list()
-                    .layer(0, new DenseLayer.Builder().nIn(numInputs).nOut(numHiddenNodes)
-                            .weightInit(WeightInit.XAVIER)
-                            .activation(Activation.RELU)
-                            .build())
-                    .layer(1, new OutputLayer.Builder(LossFunction.NEGATIVELOGLIKELIHOOD)
-                            .weightInit(WeightInit.XAVIER)
-                            .activation(Activation.SOFTMAX).weightInit(WeightInit.XAVIER)
-                            .nIn(numHiddenNodes).nOut(numberOfClasses).build())
-                    .pretrain(false).backprop(true).build();
-
-
-            MultiLayerNetwork model = new MultiLayerNetwork(conf);
-            model.init();
-            model.setListeners(new ScoreIterationListener(10));  //Print score every 10 parameter updates
+            Evaluation eval = new Evaluation(numberOfClasses);
+            Map<String, Object> metrics;
 
-            for (int n = 0; n < nEpochs; n++) {
-                model.fit(trainingData);
-            }
+            if (batchSize > 0) {
+                int[] indices = RowStoreDataSetIterator.permutation(size, seed);
+                int trainCount = (int) Math.round(size * trainPercent);
+                DataSetIterator trainingData = new RowStoreDataSetIterator(rows, indices, 0, trainCount, batchSize, numInputs, outputOffset, numberOfClasses, seed, true);
+                DataSetIterator testData = new RowStoreDataSetIterator(rows, indices, trainCount, size, batchSize, numInputs, outputOffset, numberOfClasses, seed, false);
 
-            System.out.println("Evaluate model....");
-            INDArray output = model.output(testData.getFeatureMatrix(),false);
-            Evaluation eval = new Evaluation(numberOfClasses);
-            eval.eval(testData.getLabels(), output, testMetaData);          //Note we are passing in the test set metadata here
+                normalizer.fit(trainingData);           //One pass over the training batches to collect min/max
+                trainingData.setPreProcessor(normalizer);
+                testData.setPreProcessor(normalizer);
+
+                for (int n = 0; n < nEpochs; n++) {
+                    training.checkCancelled();
+                    long start = System.nanoTime();
+                    trainingData.reset();
+                    if (parallel == null) {
+                        model.fit(trainingData);
+                    } else {
+                        parallel.fit(trainingData);
+                    }
+                    trainingLog.record(training, "epoch", n + 1, model.score(), trainCount, start, null);
+                    training.report((n + 1d) / nEpochs, model.score());
+                }
+
+                long start = System.nanoTime();
+                while (testData.hasNext()) {
+                    DataSet batch = testData.next();
+                    eval.eval(batch.getLabels(), model.output(batch.getFeatureMatrix(), false));
+                }
+                metrics = validated(training, eval, start);
+            } else {
+                DataSet allData = toDataSet(size, numInputs, outputOffset, numberOfClasses);
+                allData.shuffle(seed);
+                SplitTestAndTrain testAndTrain = allData.splitTestAndTrain(trainPercent);  //Use 65% of data for training
+
+                DataSet trainingData = testAndTrain.getTrain();
+                DataSet testData = testAndTrain.getTest();
+
+                normalizer.fitLabel(true);
+                normalizer.fit(trainingData);           //Collect the statistics (mean/stdev) from the training data. This does not modify the input data
+                normalizer.transform(trainingData);     //Apply normalization to the training data
+                normalizer.transform(testData);         //Apply normalization to the test data. This is using statistics calculated from the *training* set
+
+                List<DataSet> shards = parallel == null ? null : parallel.split(trainingData);
+                for (int n = 0; n < nEpochs; n++) {
+                    training.checkCancelled();
+                    long start = System.nanoTime();
+                    if (parallel == null) {
+                        model.fit(trainingData);
+                    } else {
+                        parallel.fit(shards.iterator());
+                    }
+                    trainingLog.record(training, "epoch", n + 1, model.score(), trainingData.numExamples(), start, null);
+                    training.report((n + 1d) / nEpochs, model.score());
+                }
 
-            List<Prediction> predictionErrors = eval.getPredictionErrors();
-            System.out.println("\n\n+++++ Prediction Errors +++++");
-            for(Prediction p : predictionErrors){
-                System.out.printf("Predicted class: %d, Actual class: %d\t%s%n", p.getPredictedClass(), p.getActualClass(), p.getRecordMetaData(RecordMetaData.class));
+                long start = System.nanoTime();
+                INDArray output = model.output(testData.getFeatureMatrix(),false);
+                eval.eval(testData.getLabels(), output);
+                metrics = validated(training, eval, start);
             }
-            //Print the evaluation statistics
-            System.out.println(eval.stats());
 
-            this.model = model;
-            this.state = State.ready;
+            INDArray updaterState = model.getUpdater().getStateViewArray();
+            return new Trained(size, 1d - eval.accuracy(), model, normalizer, Collections.unmodifiableList(new ArrayList<>(labels.values().subList(0, numberOfClasses))), updaterState == null ? 0 : updaterState.length(), metrics);
 
+        } catch (RuntimeException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            if (parallel != null) parallel.close();
+            release(0, reserved);
+        }
+    }
+
+    private Map<String, Object> validated(Training training, Evaluation eval, long start) {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("accuracy", eval.accuracy());
+        metrics.put("precision", eval.precision());
+        metrics.put("recall", eval.recall());
+        metrics.put("f1", eval.f1());
+        metrics.put("validationError", 1d - eval.accuracy());
+        trainingLog.record(training, "validation", 1, 1d - eval.accuracy(), eval.getNumRowCounter(), start, metrics);
+        return metrics;
+    }
+
+    /**
+     * Checks for cancellation after every parameter update, the replicas of data-parallel training are checked
+     * through the network itself, which fits its share of every round.
+     */
+    private static class CancellationListener implements IterationListener {
+        private final transient Training training;
+
+        CancellationListener(Training training) {
+            this.training = training;
+        }
+
+        @Override
+        public boolean invoked() {
+            return false;
+        }
+
+        @Override
+        public void invoke() {
+        }
+
+        @Override
+        public void iterationDone(Model model, int iteration) {
+            training.checkCancelled();
+        }
+    }
+
+    /**
+     * Applies {@link TrainingGovernor#nd4jThreads} to ND4J's OpenMP and BLAS threads, which are global to the process.
+     * Called when the extension starts and again before each training, once set the limit stays until it is changed,
+     * {@code 0} doesn't restore the ND4J defaults.
+     */
+    static synchronized void limitThreads() {
+        int threads = TrainingGovernor.nd4jThreads;
+        if (threads <= 0 || threads == nd4jThreads) return;
+        Nd4j.factory().blas().setMaxThreads(threads); // loads the backend, which the native ops need
+        NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(threads);
+        nd4jThreads = threads;
+    }
+
+    /**
+     * Writes the network with {@link ModelSerializer} and the min/max feature statistics of the normalizer.
+     */
+    @Override
+    protected void writeTrained(Snapshot snapshot, DataOutputStream out) throws IOException {
+        Trained trained = (Trained) snapshot;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ModelSerializer.writeModel(trained.model, bytes, false);
+        ModelFile.writeBytes(out, bytes.toByteArray());
+        Nd4j.write(trained.normalizer.getMin(), out);
+        Nd4j.write(trained.normalizer.getMax(), out);
+        out.writeInt(trained.labels.size());
+        for (String label : trained.labels) {
+            out.writeUTF(label);
+        }
+    }
+
+    @Override
+    protected void readTrained(DataInputStream in, int trainingSets) throws IOException {
+        MultiLayerNetwork model;
+        try (InputStream payload = ModelFile.payload(in)) {
+            model = ModelSerializer.restoreMultiLayerNetwork(payload);
+        }
+        NormalizerMinMaxScaler normalizer = new NormalizerMinMaxScaler();
+        normalizer.setFeatureStats(Nd4j.read(in), Nd4j.read(in));
+        int count = in.readInt();
+        List<String> labels = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            labels.add(in.readUTF());
+        }
+        publish(new Trained(trainingSets, Double.NaN, model, normalizer, Collections.unmodifiableList(labels), 0, Collections.emptyMap()));
+    }
+
+    private MultiLayerConfiguration configuration(long seed, double learningRate, int numInputs, int numHiddenNodes, int numberOfClasses) {
+        return new NeuralNetConfiguration.Builder()
+                .seed(seed)
+                .iterations(1)
+                .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT)
+                .learningRate(learningRate)
+                .updater(Updater.NESTEROVS).momentum(0.9)
+                .list()
+                .layer(0, new DenseLayer.Builder().nIn(numInputs).nOut(numHiddenNodes)
+                        .weightInit(WeightInit.XAVIER)
+                        .activation(Activation.RELU)
+                        .build())
+                .layer(1, new OutputLayer.Builder(LossFunction.NEGATIVELOGLIKELIHOOD)
+                        .weightInit(WeightInit.XAVIER)
+                        .activation(Activation.SOFTMAX).weightInit(WeightInit.XAVIER)
+                        .nIn(numHiddenNodes).nOut(numberOfClasses).build())
+                .pretrain(false).backprop(true).build();
+    }
+
+    /**
+     * Builds the feature and one-hot label matrices straight from the columnar row store.
+     */
+    private DataSet toDataSet(int size, int numInputs, int outputOffset, int numberOfClasses) {
+        double[] features = new double[size * numInputs];
+        double[] labels = new double[size * numberOfClasses];
+        for (int row = 0; row < size; row++) {
+            for (int col = 0; col < numInputs; col++) {
+                features[row * numInputs + col] = rows.getDouble(row, col);
+            }
+            labels[row * numberOfClasses + rows.getCode(row, outputOffset)] = 1d;
         }
+        return new DataSet(Nd4j.create(features, new int[]{size, numInputs}), Nd4j.create(labels, new int[]{size, numberOfClasses}));
     }
 
     @Override
     List<Node> show() {
-        if ( state != State.ready ) throw new IllegalStateException("Model not trained yet");
+        Trained trained = snapshot();
+        if ( trained == null ) throw new IllegalStateException("Model not trained yet");
+        MultiLayerNetwork model = trained.model;
         List<Node> result = new ArrayList<>();
         int layerCount = model.getnLayers();
         for (Layer layer : model.getLayers()) {
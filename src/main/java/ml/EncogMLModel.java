@@ -1,64 +1,146 @@
 package ml;
 
+import org.encog.mathutil.randomize.generate.MersenneTwisterGenerateRandom;
+import org.encog.ml.MLEncodable;
+import org.encog.ml.MLMethod;
 import org.encog.ml.MLRegression;
+import org.encog.ml.MLResettable;
+import org.encog.ml.TrainingImplementationType;
 import org.encog.ml.data.MLData;
+import org.encog.ml.data.cross.DataFold;
+import org.encog.ml.data.cross.KFoldCrossvalidation;
 import org.encog.ml.data.versatile.NormalizationHelper;
 import org.encog.ml.data.versatile.VersatileMLDataSet;
 import org.encog.ml.data.versatile.columns.ColumnDefinition;
 import org.encog.ml.data.versatile.columns.ColumnType;
 import org.encog.ml.data.versatile.sources.VersatileDataSource;
 import org.encog.ml.factory.MLMethodFactory;
+import org.encog.ml.factory.MLTrainFactory;
 import org.encog.ml.model.EncogModel;
+import org.encog.ml.model.config.MethodConfig;
+import org.encog.ml.train.MLTrain;
+import org.encog.ml.train.strategy.end.SimpleEarlyStoppingStrategy;
+import org.encog.persist.EncogDirectoryPersistence;
+import org.encog.util.concurrency.MultiThreadable;
 import org.encog.util.simple.EncogUtility;
 import org.neo4j.graphdb.Node;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author mh
  * @since 19.07.17
  */
-public class EncogMLModel extends MLModel<String[]> {
+public class EncogMLModel extends MLModel<double[]> {
 
-    private EncogModel model; // todo MLMethod and decide later between regression, classification and others
-    private MLRegression method;
+    static class Trained extends Snapshot {
+        final MLRegression method;
+        final NormalizationHelper helper;
+        final EncogPredictor predictor;
 
+        private final long heapBytes;
 
-    @Override
-    protected String[] asRow(Map<String, Object> inputs, Object output)  {
-        String[] row = new String[inputs.size() + (output == null ? 0 : 1)];
-        for (String k : inputs.keySet()) {
-            row[offsets.get(k)] = inputs.get(k).toString();
+        /**
+         * @param metrics training and validation error, empty if the model was loaded from disk
+         */
+        Trained(int trainingSets, double validationError, MLRegression method, NormalizationHelper helper, EncogPredictor predictor, Map<String, Object> metrics) {
+            super(trainingSets, validationError, summary(metrics, method, helper));
+            this.method = method;
+            this.helper = helper;
+            this.predictor = predictor;
+            this.heapBytes = heapBytes(method, helper);
+        }
+
+        private static Map<String, Object> summary(Map<String, Object> metrics, MLRegression method, NormalizationHelper helper) {
+            Map<String, Object> summary = new LinkedHashMap<>(metrics);
+            summary.put("selectedMethod", method.toString());
+            summary.put("normalization", helper.toString());
+            return summary;
         }
-        if (output != null) {
-            row[offsets.get(this.output)] = output.toString();
+
+        /**
+         * The encoded parameters of the method, or its persisted size if it can't be encoded, and the source columns
+         * of the normalization.
+         */
+        private static long heapBytes(MLRegression method, NormalizationHelper helper) {
+            long bytes = method instanceof MLEncodable ? ((MLEncodable) method).encodedArrayLength() * 8L : persistedSize(method);
+            for (ColumnDefinition col : helper.getSourceColumns()) {
+                bytes += 64 + col.getClasses().size() * 64L;
+            }
+            return bytes;
+        }
+
+        private static long persistedSize(MLRegression method) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            EncogDirectoryPersistence.saveObject(bytes, method);
+            return bytes.size();
+        }
+
+        @Override
+        long heapBytes() {
+            return heapBytes;
         }
-        return row;
     }
 
 
     @Override
-    protected Object doPredict(String[] line) {
-        NormalizationHelper helper = model.getDataset().getNormHelper();
-        MLData input = helper.allocateInputVector();
-        helper.normalizeInputVector(line, input.getData(), false);
-        MLData output = method.compute(input);
-        DataType outputType = types.get(this.output);
-        switch (outputType) {
-            case _float : return output.getData(0);
-            case _class: return helper.denormalizeOutputVectorToString(output)[0];
-            default: throw new IllegalArgumentException("Output type not yet supported "+outputType);
-        }
+    protected double[] asRow(Map<String, Object> inputs, Object output)  {
+        return encoder.encode(inputs);
     }
 
     @Override
-    protected void doTrain() {
+    protected double[] asRow(Object[] inputs) {
+        return encoder.encode(inputs);
+    }
+
+
+    @Override
+    protected Object doPredict(Snapshot snapshot, Map<String, Object> inputs) {
+        return ((Trained) snapshot).predictor.predict(inputs);
+    }
+
+    @Override
+    protected Object doPredict(Snapshot snapshot, double[] line) {
+        return ((Trained) snapshot).predictor.predict(line);
+    }
+
+    /**
+     * Accounts for the normalized copy of the rows that Encog builds while training.
+     */
+    @Override
+    protected Snapshot doTrain(Training training) {
+        long bytes = 0;
+        for (int col = 0; col < rows.width(); col++) {
+            bytes += types.get(rows.name(col)) == DataType._class ? rows.dictionary(col).size() * 8L : 8;
+        }
+        bytes = training.size * (16 + bytes);
+        reserve(bytes, 0);
+        try {
+            return fit(training);
+        } finally {
+            release(bytes, 0);
+        }
+    }
+
+    private Snapshot fit(Training training) {
+        int size = training.size;
+        Config config = training.config;
         VersatileMLDataSet data = new VersatileMLDataSet(new VersatileDataSource() {
+            final String[] line = new String[rows.width()];
             int idx = 0;
 
             @Override
             public String[] readLine() {
-                return idx >= rows.size() ? null : rows.get(idx++);
+                if (idx >= size) return null;
+                for (int col = 0; col < line.length; col++) {
+                    line[col] = rows.getString(idx, col);
+                }
+                idx++;
+                return line;
             }
 
             @Override
@@ -74,6 +156,7 @@ public class EncogMLModel extends MLModel<String[]> {
         offsets.entrySet().stream().sorted(Comparator.comparingInt(Map.Entry::getValue)).forEach(e -> {
             String k = e.getKey();
             ColumnDefinition col = data.defineSourceColumn(k, offsets.get(k), typeOf(types.get(k))); // todo has bug, doesn't work like that, cols have to be in index order
+            if (types.get(k) == DataType._order) defineOrder(col, offsets.get(k), size);
             if (k.equals(output)) {
                 data.defineOutput(col);
             } else {
@@ -98,7 +181,8 @@ public class EncogMLModel extends MLModel<String[]> {
         // MLMethodFactor.TYPE_NEAT: NEAT Neural Network
         // MLMethodFactor.TYPE_PNN: Probabilistic Neural Network
         EncogModel model = new EncogModel(data);
-        model.selectMethod(data, methodFor(methodName)); // todo from config
+        String methodType = methodFor(training.method);
+        model.selectMethod(data, methodType); // todo from config
         // Send any output to the console.
 // model.setReport(new ConsoleStatusReportable());
 
@@ -108,14 +192,11 @@ public class EncogMLModel extends MLModel<String[]> {
 
         // Hold back some data for a final validation.
         // Shuffle the data into a random ordering.
-        // Use a seed of 1001 so that we always use the same holdback and will get more consistent results.
-        model.holdBackValidation(0.3, true, 1001); // todo from config
+        // Use a fixed seed so that we always use the same holdback and will get more consistent results.
+        model.holdBackValidation(config.holdback.get(), true, config.holdbackSeed.get());
 
-        // Choose whatever is the default training type for this model.
-        model.selectTrainingType(data);
-
-        // Use a 5-fold cross-validated train.  Return the best method found.
-        MLRegression bestMethod = (MLRegression) model.crossvalidate(5, true); // todo from config
+        // Use a k-fold cross-validated train.  Return the best method found.
+        MLRegression bestMethod = (MLRegression) crossvalidate(model, methodType, training);
         // MLRegression vs. MLClassification
 
         // Display the training and validation errors.
@@ -128,9 +209,166 @@ public class EncogMLModel extends MLModel<String[]> {
 
         // Display the final model.
 //         System.out.println("Final model: " + bestMethod);
-        this.model = model;
-        this.method = bestMethod;
-        this.state = State.ready;
+        NormalizationHelper helper = data.getNormHelper();
+        long start = System.nanoTime();
+        double validationError = EncogUtility.calculateRegressionError(bestMethod, model.getValidationDataset());
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("trainingError", EncogUtility.calculateRegressionError(bestMethod, model.getTrainingDataset()));
+        metrics.put("validationError", validationError);
+        trainingLog.record(training, "validation", 1, validationError, model.getDataset().getRecordCount(), start, metrics);
+        return new Trained(size, validationError, bestMethod, helper, new EncogPredictor(helper, bestMethod, types.get(output), encoder, offsets), metrics);
+    }
+
+    /**
+     * Writes the analyzed source columns (range, mean, sd, classes) and the trained method in Encog's persistence format.
+     * The normalization strategy is not serializable, it is derived again from the columns and the method type on load.
+     */
+    @Override
+    protected void writeTrained(Snapshot snapshot, DataOutputStream out) throws IOException {
+        NormalizationHelper helper = ((Trained) snapshot).helper;
+        List<ColumnDefinition> columns = helper.getSourceColumns();
+        out.writeInt(columns.size());
+        for (ColumnDefinition col : columns) {
+            out.writeUTF(col.getName());
+            out.writeInt(col.getIndex());
+            out.writeUTF(col.getDataType().name());
+            out.writeDouble(col.getLow());
+            out.writeDouble(col.getHigh());
+            out.writeDouble(col.getMean());
+            out.writeDouble(col.getSd());
+            out.writeInt(col.getCount());
+            out.writeInt(col.getClasses().size());
+            for (String value : col.getClasses()) {
+                out.writeUTF(value);
+            }
+            out.writeBoolean(helper.getOutputColumns().contains(col));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EncogDirectoryPersistence.saveObject(bytes, ((Trained) snapshot).method);
+        ModelFile.writeBytes(out, bytes.toByteArray());
+    }
+
+    @Override
+    protected void readTrained(DataInputStream in, int trainingSets) throws IOException {
+        VersatileMLDataSet data = new VersatileMLDataSet(null);
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ColumnDefinition col = data.defineSourceColumn(in.readUTF(), in.readInt(), ColumnType.valueOf(in.readUTF()));
+            col.setLow(in.readDouble());
+            col.setHigh(in.readDouble());
+            col.setMean(in.readDouble());
+            col.setSd(in.readDouble());
+            col.setCount(in.readInt());
+            int classes = in.readInt();
+            for (int c = 0; c < classes; c++) {
+                col.defineClass(in.readUTF());
+            }
+            if (in.readBoolean()) {
+                data.defineOutput(col);
+            } else {
+                data.defineInput(col);
+            }
+        }
+        new EncogModel(data).selectMethod(data, methodFor(methodName));
+        MLRegression method;
+        try (InputStream payload = ModelFile.payload(in)) {
+            method = (MLRegression) EncogDirectoryPersistence.loadObject(payload);
+        }
+        NormalizationHelper helper = data.getNormHelper();
+        publish(new Trained(trainingSets, Double.NaN, method, helper, new EncogPredictor(helper, method, types.get(output), encoder, offsets), Collections.emptyMap()));
+    }
+
+    /**
+     * Same as {@link EncogModel#crossvalidate(int, boolean)} with the default training type of the method,
+     * but the folds are trained concurrently on a fork-join pool of {@code parallelism} threads.
+     * @return the method of the fold with the lowest validation error
+     */
+    private MLMethod crossvalidate(EncogModel model, String methodType, Training training) {
+        Config config = training.config;
+        int k = config.folds.get();
+        KFoldCrossvalidation cross = new KFoldCrossvalidation(model.getTrainingDataset(), k);
+        cross.setRnd(new MersenneTwisterGenerateRandom(config.seed.get()));
+        cross.process(true);
+        List<DataFold> folds = cross.getFolds();
+
+        MethodConfig methodConfig = model.getMethodConfigurations().get(methodType);
+        String trainingType = methodConfig.suggestTrainingType();
+        String trainingArgs = methodConfig.suggestTrainingArgs(trainingType);
+
+        int parallelism = Math.max(1, TrainingGovernor.encogParallelism(Math.min(config.parallelism.get(), folds.size())));
+        AtomicInteger finished = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(folds.size());
+            for (int i = 0; i < folds.size(); i++) {
+                DataFold fold = folds.get(i);
+                int seed = (int) (config.seed.get() + i);
+                int step = i + 1;
+                tasks.add(pool.submit(() -> {
+                    training.checkCancelled();
+                    long start = System.nanoTime();
+                    long samples = fitFold(model, fold, seed, trainingType, trainingArgs, parallelism > 1, training, finished, folds.size());
+                    trainingLog.record(training, "fold", step, fold.getScore(), samples, start, null);
+                    training.report((double) finished.incrementAndGet() / folds.size(), fold.getScore());
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double bestScore = Double.POSITIVE_INFINITY;
+        MLMethod bestMethod = null;
+        for (DataFold fold : folds) {
+            if (fold.getScore() < bestScore) {
+                bestScore = fold.getScore();
+                bestMethod = fold.getMethod();
+            }
+        }
+        return bestMethod;
+    }
+
+    /**
+     * Trains a new method on the training part of the fold until the error on its validation part stops improving.
+     * @param seed initializes resettable methods, so that the folds train the same regardless of their scheduling
+     * @param singleThreaded folds run in parallel already, so the trainer itself should use only one thread,
+     *                       otherwise it uses {@link TrainingGovernor#encogThreads}
+     * @return the number of rows the iterations trained from
+     */
+    private long fitFold(EncogModel model, DataFold fold, int seed, String trainingType, String trainingArgs, boolean singleThreaded, Training training, AtomicInteger finished, int folds) {
+        MLMethod method = model.createMethod();
+        if (method instanceof MLResettable) {
+            ((MLResettable) method).reset(seed);
+        }
+        MLTrain train = new MLTrainFactory().create(method, fold.getTraining(), trainingType, trainingArgs);
+        if (train instanceof MultiThreadable) {
+            int threads = singleThreaded ? 1 : TrainingGovernor.encogThreads;
+            if (threads > 0) ((MultiThreadable) train).setThreadCount(threads);
+        }
+        long iterations = 0;
+        if (train.getImplementationType() == TrainingImplementationType.Iterative) {
+            SimpleEarlyStoppingStrategy earlyStop = new SimpleEarlyStoppingStrategy(fold.getValidation());
+            train.addStrategy(earlyStop);
+            while (!train.isTrainingDone()) {
+                training.checkCancelled();
+                train.iteration();
+                iterations++;
+                training.report((double) finished.get() / folds, train.getError());
+            }
+            fold.setScore(earlyStop.getValidationError());
+        } else if (train.getImplementationType() == TrainingImplementationType.OnePass) {
+            training.checkCancelled();
+            train.iteration();
+            iterations++;
+            fold.setScore(model.calculateError(method, fold.getValidation()));
+        } else {
+            throw new IllegalArgumentException("Unsupported training implementation " + train.getImplementationType());
+        }
+        train.finishTraining();
+        fold.setMethod(method);
+        return iterations * fold.getTraining().getRecordCount();
     }
 
     private String methodFor(Method method) {
@@ -144,6 +382,19 @@ public class EncogMLModel extends MLModel<String[]> {
         }
     }
 
+    /**
+     * Encog only analyzes ordinal columns whose values are defined up front, in order.
+     */
+    private void defineOrder(ColumnDefinition col, int column, int size) {
+        TreeSet<Double> values = new TreeSet<>();
+        for (int row = 0; row < size; row++) {
+            values.add(rows.getDouble(row, column));
+        }
+        for (double value : values) {
+            col.defineClass(RowStore.format(value));
+        }
+    }
+
     /*
     nominal,
 ordinal,
@@ -166,15 +417,4 @@ ignore
     public EncogMLModel(String name, Map<String, String> types, String output, Map<String, Object> config) {
         super(name, types, output, config);
     }
-
-
-    @Override
-    protected ML.ModelResult resultWithInfo(ML.ModelResult result) {
-        return result.withInfo(
-            "trainingError", EncogUtility.calculateRegressionError(method, model.getTrainingDataset()),
-            "validationError",EncogUtility.calculateRegressionError(method, model.getValidationDataset()),
-            "selectedMethod",method.toString(),
-            "normalization",model.getDataset().getNormHelper().toString()
-        );
-    }
 }
@@ -0,0 +1,137 @@
+package ml;
+
+import org.encog.ml.MLRegression;
+import org.encog.ml.data.MLData;
+import org.encog.ml.data.basic.BasicMLData;
+import org.encog.ml.data.versatile.NormalizationHelper;
+import org.encog.ml.data.versatile.columns.ColumnDefinition;
+import org.encog.ml.data.versatile.columns.ColumnType;
+import org.encog.ml.data.versatile.normalizers.Normalizer;
+import org.encog.ml.data.versatile.normalizers.OneOfNNormalizer;
+import org.encog.ml.data.versatile.normalizers.strategies.BasicNormalizationStrategy;
+import org.encog.neural.flat.FlatNetwork;
+import org.encog.neural.networks.BasicNetwork;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Prediction path for a trained Encog method that is compiled once after training.
+ *
+ * Input columns, their slots in the encoded row and their normalizers are resolved up front. Inputs are encoded
+ * by the {@link FeatureEncoder} into a per-thread row and normalized from there into a per-thread input buffer,
+ * feed-forward networks compute on a per-thread copy of the flat network, so a steady-state prediction from
+ * numeric inputs allocates nothing. Methods that are no {@link BasicNetwork} or normalizations
+ * that are no {@link BasicNormalizationStrategy} fall back to the generic Encog calls.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class EncogPredictor {
+    private final NormalizationHelper helper;
+    private final MLRegression method;
+    private final FeatureEncoder encoder;
+    private final int[] slots;
+    private final ColumnDefinition[] columns;
+    private final Normalizer[] normalizers;
+    private final ColumnDefinition outputColumn;
+    private final boolean argMaxOutput;
+    private final MLModel.DataType outputType;
+    private final ThreadLocal<Worker> workers;
+
+    EncogPredictor(NormalizationHelper helper, MLRegression method, MLModel.DataType outputType, FeatureEncoder encoder, Map<String, Integer> offsets) {
+        this.helper = helper;
+        this.method = method;
+        this.outputType = outputType;
+        this.encoder = encoder;
+        List<ColumnDefinition> inputs = helper.getInputColumns();
+        this.slots = new int[inputs.size()];
+        this.columns = new ColumnDefinition[inputs.size()];
+        this.normalizers = new Normalizer[inputs.size()];
+        BasicNormalizationStrategy strategy = helper.getNormStrategy() instanceof BasicNormalizationStrategy ? (BasicNormalizationStrategy) helper.getNormStrategy() : null;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = inputs.get(i);
+            slots[i] = offsets.get(columns[i].getName());
+            normalizers[i] = strategy == null ? null : strategy.getInputNormalizers().get(columns[i].getDataType());
+        }
+        this.outputColumn = helper.getOutputColumns().get(0);
+        this.argMaxOutput = strategy != null && helper.getOutputColumns().size() == 1
+                && strategy.getOutputNormalizers().get(outputColumn.getDataType()) instanceof OneOfNNormalizer;
+        int inputCount = helper.calculateNormalizedInputCount();
+        int outputCount = helper.calculateNormalizedOutputCount();
+        this.workers = ThreadLocal.withInitial(() -> new Worker(encoder.width(), inputCount, outputCount));
+    }
+
+    Object predict(Map<String, Object> inputs) {
+        Worker worker = workers.get();
+        return predict(worker, encoder.encode(inputs, worker.row));
+    }
+
+    /**
+     * @param row inputs as encoded by the {@link FeatureEncoder}
+     */
+    Object predict(double[] row) {
+        return predict(workers.get(), row);
+    }
+
+    private Object predict(Worker worker, double[] row) {
+        double[] input = worker.input;
+        int idx = 0;
+        for (int i = 0; i < columns.length; i++) {
+            idx = normalize(i, row[slots[i]], input, idx);
+        }
+        return decode(worker.compute());
+    }
+
+    private int normalize(int column, double value, double[] input, int idx) {
+        ColumnDefinition col = columns[column];
+        Normalizer normalizer = normalizers[column];
+        if (col.getDataType() == ColumnType.continuous) {
+            return normalizer == null ? helper.getNormStrategy().normalizeColumn(col, true, value, input, idx) : normalizer.normalizeColumn(col, value, input, idx);
+        }
+        String s = col.getDataType() == ColumnType.ordinal ? RowStore.format(value) : encoder.decode(slots[column], value);
+        return normalizer == null ? helper.getNormStrategy().normalizeColumn(col, true, s, input, idx) : normalizer.normalizeColumn(col, s, input, idx);
+    }
+
+    private Object decode(double[] output) {
+        switch (outputType) {
+            case _float:
+                return output[0];
+            case _class:
+                if (argMaxOutput) {
+                    List<String> classes = outputColumn.getClasses();
+                    int best = 0;
+                    for (int i = 1; i < classes.size(); i++) {
+                        if (output[i] > output[best]) best = i;
+                    }
+                    return classes.get(best);
+                }
+                return helper.denormalizeOutputVectorToString(new BasicMLData(output))[0];
+            default:
+                throw new IllegalArgumentException("Output type not yet supported " + outputType);
+        }
+    }
+
+    private class Worker {
+        final double[] row;
+        final double[] input;
+        final double[] output;
+        final FlatNetwork flat;
+
+        Worker(int width, int inputCount, int outputCount) {
+            this.row = new double[width];
+            this.input = new double[inputCount];
+            this.output = new double[outputCount];
+            this.flat = method instanceof BasicNetwork ? ((BasicNetwork) method).getFlat().clone() : null;
+        }
+
+        double[] compute() {
+            if (flat != null) {
+                flat.compute(input, output);
+                return output;
+            }
+            MLData result = method.compute(new BasicMLData(input));
+            return result.getData();
+        }
+    }
+}
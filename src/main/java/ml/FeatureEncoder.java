@@ -0,0 +1,71 @@
+package ml;
+
+import java.util.Map;
+
+/**
+ * Encodes prediction inputs into a {@code double[]} arranged by column offset, derived from the types of a model.
+ *
+ * Numbers are written straight into their slot, strings are only parsed for numeric columns when the caller
+ * actually passed a string, and class values are mapped to the codes of the training dictionary.
+ * Unknown class values are encoded as {@code -1}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class FeatureEncoder {
+    private final String[] names;
+    private final RowStore.Dictionary[] dictionaries;
+
+    FeatureEncoder(RowStore rows, int outputOffset) {
+        int width = rows.width() - 1;
+        this.names = new String[width];
+        this.dictionaries = new RowStore.Dictionary[width];
+        for (int col = 0, i = 0; col < rows.width(); col++) {
+            if (col == outputOffset) continue;
+            names[i] = rows.name(col);
+            dictionaries[i] = rows.type(col) == MLModel.DataType._class ? rows.dictionary(col) : null;
+            i++;
+        }
+    }
+
+    int width() {
+        return names.length;
+    }
+
+    double[] encode(Map<String, Object> inputs) {
+        return encode(inputs, new double[names.length]);
+    }
+
+    double[] encode(Map<String, Object> inputs, double[] row) {
+        if (inputs.size() > names.length) {
+            throw new IllegalArgumentException(String.format("Expected %d inputs but got %d: %s", names.length, inputs.size(), inputs.keySet()));
+        }
+        for (int i = 0; i < names.length; i++) {
+            Object value = inputs.get(names[i]);
+            if (value == null) throw new IllegalArgumentException("Missing input " + names[i]);
+            RowStore.Dictionary dictionary = dictionaries[i];
+            row[i] = dictionary == null ? RowStore.toDouble(value) : dictionary.code(value.toString());
+        }
+        return row;
+    }
+
+    /**
+     * @param values inputs arranged by column offset, none of them {@code null}
+     */
+    double[] encode(Object[] values) {
+        double[] row = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            RowStore.Dictionary dictionary = dictionaries[i];
+            row[i] = dictionary == null ? RowStore.toDouble(values[i]) : dictionary.code(values[i].toString());
+        }
+        return row;
+    }
+
+    /**
+     * @return the class value for an encoded slot, {@code null} for unknown values
+     */
+    String decode(int column, double value) {
+        int code = (int) value;
+        return code < 0 ? null : dictionaries[column].value(code);
+    }
+}
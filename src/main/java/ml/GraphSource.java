@@ -0,0 +1,131 @@
+package ml;
+
+import org.neo4j.collection.primitive.PrimitiveLongIterator;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.api.StatementConstants;
+import org.neo4j.kernel.api.exceptions.EntityNotFoundException;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.procedure.TerminationGuard;
+
+import java.util.Map;
+
+/**
+ * Reads training rows straight from node or relationship properties through the kernel API,
+ * without going through Cypher or materializing a map per row.
+ *
+ * The rows of a scan are staged and only added to the model once the scan completed, so an invalid property value or a
+ * terminated transaction adds none of them.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class GraphSource {
+    private static final int CHECK_ROWS = RowStore.CHUNK_SIZE;
+
+    private final MLModel<?> model;
+    private final TerminationGuard guard;
+    private final RowStore.Staged staged;
+    private final String[] properties;
+    private final int[] propertyKeys;
+    private long added, skipped;
+
+    /**
+     * @param mapping column name to property key, columns that are not mapped are read from the property of the same name
+     * @param guard checked every {@link #CHECK_ROWS} entities, {@code null} if there is no transaction to check
+     */
+    GraphSource(MLModel<?> model, ReadOperations ops, Map<String, String> mapping, String outputProperty, TerminationGuard guard) {
+        this.model = model;
+        this.guard = guard;
+        this.staged = model.rows.new Staged(CHECK_ROWS);
+        this.properties = new String[model.offsets.size()];
+        this.propertyKeys = new int[properties.length];
+        model.offsets.forEach((column, offset) -> {
+            properties[offset] = column.equals(model.output) && outputProperty != null ? outputProperty : mapping.getOrDefault(column, column);
+            propertyKeys[offset] = ops.propertyKeyGetForName(properties[offset]);
+        });
+    }
+
+    static Statement statement(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class).get();
+    }
+
+    GraphSource addFromLabel(ReadOperations ops, String label) {
+        int labelId = ops.labelGetForName(label);
+        if (labelId == StatementConstants.NO_SUCH_LABEL) return this;
+        checkProperties();
+        Object[] row = new Object[propertyKeys.length];
+        PrimitiveLongIterator nodes = ops.nodesGetForLabel(labelId);
+        for (long scanned = 1; nodes.hasNext(); scanned++) {
+            long id = nodes.next();
+            check(scanned);
+            try {
+                for (int i = 0; i < propertyKeys.length; i++) {
+                    row[i] = ops.nodeGetProperty(id, propertyKeys[i]);
+                }
+            } catch (EntityNotFoundException e) {
+                continue; // deleted concurrently
+            }
+            stage(row);
+        }
+        model.addStaged(staged);
+        return this;
+    }
+
+    GraphSource addFromRelationshipType(ReadOperations ops, String type) {
+        int typeId = ops.relationshipTypeGetForName(type);
+        if (typeId == StatementConstants.NO_SUCH_RELATIONSHIP_TYPE) return this;
+        checkProperties();
+        Object[] row = new Object[propertyKeys.length];
+        int[] relType = new int[1];
+        PrimitiveLongIterator rels = ops.relationshipsGetAll();
+        for (long scanned = 1; rels.hasNext(); scanned++) {
+            long id = rels.next();
+            check(scanned);
+            try {
+                ops.relationshipVisit(id, (relId, typeOf, start, end) -> relType[0] = typeOf);
+                if (relType[0] != typeId) continue;
+                for (int i = 0; i < propertyKeys.length; i++) {
+                    row[i] = ops.relationshipGetProperty(id, propertyKeys[i]);
+                }
+            } catch (EntityNotFoundException e) {
+                continue; // deleted concurrently
+            }
+            stage(row);
+        }
+        model.addStaged(staged);
+        return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a mapped or output property key doesn't exist in the graph, most likely a typo
+     */
+    private void checkProperties() {
+        for (int i = 0; i < propertyKeys.length; i++) {
+            if (propertyKeys[i] == StatementConstants.NO_SUCH_PROPERTY_KEY) {
+                throw new IllegalArgumentException(String.format("Property key %s of model %s doesn't exist", properties[i], model.name));
+            }
+        }
+    }
+
+    private void check(long scanned) {
+        if (guard != null && scanned % CHECK_ROWS == 0) guard.check();
+    }
+
+    private void stage(Object[] row) {
+        for (Object value : row) {
+            if (value == null) {
+                skipped++;
+                return;
+            }
+        }
+        staged.add(row);
+        added++;
+    }
+
+    ML.ModelResult withInfo(ML.ModelResult result) {
+        return result.withInfo("added", added, "skipped", skipped);
+    }
+}
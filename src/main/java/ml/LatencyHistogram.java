@@ -0,0 +1,84 @@
+package ml;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds with log-linear buckets, like an HDR histogram.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} linear buckets, so a recorded value is reported with a relative
+ * error below 1/16. Recording is one atomic increment, reading percentiles scans the buckets and is only
+ * approximately consistent with concurrent recording.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        counts.incrementAndGet(index(Math.max(0, nanos)));
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that is recorded in the bucket
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy);
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        final long total;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for (long count : counts) total += count;
+            this.total = total;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below which that percentage of the recorded values lies, 0 if nothing was recorded
+         */
+        long percentile(double percentile) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100d));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return highestValue(i);
+            }
+            return max();
+        }
+
+        long max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) return highestValue(i);
+            }
+            return 0;
+        }
+    }
+}
@@ -1,12 +1,19 @@
 package ml;
 
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.Statement;
 import org.neo4j.logging.Log;
 import org.neo4j.procedure.Context;
 import org.neo4j.procedure.Name;
 import org.neo4j.procedure.Procedure;
+import org.neo4j.procedure.TerminationGuard;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.stream.Stream;
 
@@ -17,6 +24,9 @@ public class ML {
     @Context
     public Log log;
 
+    @Context
+    public TerminationGuard guard;
+
     /*
 
     apoc.ml.create.classifier({types},['output'],{config}) yield model
@@ -53,13 +63,204 @@ apoc.ml.delete(model) yield model
         return Stream.of(mlModel.asResult());
     }
 
+    @Procedure
+    public Stream<ModelResult> addBatch(@Name("model") String model, @Name("inputs") List<Map<String,Object>> inputs, @Name("outputs") List<Object> outputs) {
+        MLModel mlModel = MLModel.from(model);
+        int added = mlModel.addBatch(inputs, outputs);
+        return Stream.of(mlModel.asResult().withInfo("added", (long) added));
+    }
+
+    @Procedure
+    public Stream<ModelResult> addColumns(@Name("model") String model, @Name("inputs") Map<String,List<Object>> inputs, @Name("outputs") List<Object> outputs) {
+        MLModel mlModel = MLModel.from(model);
+        int added = mlModel.addColumns(inputs, outputs);
+        return Stream.of(mlModel.asResult().withInfo("added", (long) added));
+    }
+
+    @Procedure
+    public Stream<ModelResult> addFromLabel(@Name("model") String model, @Name("label") String label, @Name(value="propertyMapping",defaultValue="{}") Map<String,String> mapping, @Name(value="outputProperty",defaultValue="") String outputProperty) {
+        MLModel mlModel = MLModel.from(model);
+        try (Statement statement = GraphSource.statement(db)) {
+            ReadOperations ops = statement.readOperations();
+            GraphSource source = new GraphSource(mlModel, ops, mapping, outputProperty.isEmpty() ? null : outputProperty, guard).addFromLabel(ops, label);
+            return Stream.of(source.withInfo(mlModel.asResult()));
+        }
+    }
+
+    @Procedure
+    public Stream<ModelResult> addFromRelationshipType(@Name("model") String model, @Name("type") String type, @Name(value="propertyMapping",defaultValue="{}") Map<String,String> mapping, @Name(value="outputProperty",defaultValue="") String outputProperty) {
+        MLModel mlModel = MLModel.from(model);
+        try (Statement statement = GraphSource.statement(db)) {
+            ReadOperations ops = statement.readOperations();
+            GraphSource source = new GraphSource(mlModel, ops, mapping, outputProperty.isEmpty() ? null : outputProperty, guard).addFromRelationshipType(ops, type);
+            return Stream.of(source.withInfo(mlModel.asResult()));
+        }
+    }
+
     @Procedure
     public Stream<ModelResult> train(@Name("model") String model) {
         MLModel mlModel = MLModel.from(model);
-        mlModel.train();
+        mlModel.train(null, guard);
         return Stream.of(mlModel.asResult());
     }
 
+    @Procedure
+    public Stream<ModelResult> save(@Name("model") String model, @Name("path") String path) throws IOException {
+        MLModel mlModel = MLModel.from(model);
+        File file = new File(path);
+        ModelFile.save(mlModel, file);
+        ModelRegistry.saved(mlModel, file);
+        return Stream.of(mlModel.asResult().withInfo("file", file.getAbsolutePath(), "bytes", file.length()));
+    }
+
+    @Procedure
+    public Stream<ModelResult> load(@Name("path") String path) throws IOException {
+        return Stream.of(ModelRegistry.load(new File(path)).asResult());
+    }
+
+    @Procedure
+    public Stream<JobResult> trainAsync(@Name("model") String model) {
+        return Stream.of(TrainingJobs.submit(MLModel.from(model)).asResult());
+    }
+
+    @Procedure
+    public Stream<JobResult> jobs() {
+        return TrainingJobs.list().stream().map(TrainingJob::asResult);
+    }
+
+    @Procedure
+    public Stream<JobResult> job(@Name("id") long id) {
+        return Stream.of(TrainingJobs.get(id).asResult());
+    }
+
+    @Procedure
+    public Stream<TuneResult> tune(@Name("model") String model, @Name("searchSpace") Map<String,Object> searchSpace, @Name(value="options",defaultValue="{}") Map<String,Object> options) {
+        return Tuning.tune(MLModel.from(model), searchSpace, options, guard);
+    }
+
+    @Procedure
+    public Stream<GovernorResult> governor() {
+        return Stream.of(TrainingGovernor.asResult());
+    }
+
+    @Procedure
+    public Stream<MetricsResult> metrics(@Name("model") String model) {
+        return MLModel.from(model).metrics.asResults(model).stream();
+    }
+
+    @Procedure
+    public Stream<TrainingLogResult> trainingLog(@Name("model") String model) {
+        return MLModel.from(model).trainingLog.asResults().stream();
+    }
+
+    public static class TrainingLogResult {
+        public final String model;
+        public final long training;
+        public final long time;
+        public final String phase;
+        public final long step;
+        public final Double score;
+        public final double millis;
+        public final double samplesPerSecond;
+        public final Map<String,Object> metrics;
+
+        public TrainingLogResult(String model, long training, long time, String phase, long step, Double score, double millis, double samplesPerSecond, Map<String, Object> metrics) {
+            this.model = model;
+            this.training = training;
+            this.time = time;
+            this.phase = phase;
+            this.step = step;
+            this.score = score;
+            this.millis = millis;
+            this.samplesPerSecond = samplesPerSecond;
+            this.metrics = metrics;
+        }
+    }
+
+    public static class MetricsResult {
+        public final String model;
+        public final String operation;
+        public final long calls;
+        public final long errors;
+        public final long rows;
+        public final double rowsPerSecond;
+        public final double p50;
+        public final double p99;
+        public final double p999;
+        public final double max;
+
+        public MetricsResult(String model, String operation, long calls, long errors, long rows, double rowsPerSecond, double p50, double p99, double p999, double max) {
+            this.model = model;
+            this.operation = operation;
+            this.calls = calls;
+            this.errors = errors;
+            this.rows = rows;
+            this.rowsPerSecond = rowsPerSecond;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+    }
+
+    public static class GovernorResult {
+        public final long maxTrainings;
+        public final long running;
+        public final long waiting;
+        public final long encogThreads;
+        public final long nd4jThreads;
+        public final List<Map<String,Object>> trainings;
+
+        public GovernorResult(long maxTrainings, long running, long waiting, long encogThreads, long nd4jThreads, List<Map<String, Object>> trainings) {
+            this.maxTrainings = maxTrainings;
+            this.running = running;
+            this.waiting = waiting;
+            this.encogThreads = encogThreads;
+            this.nd4jThreads = nd4jThreads;
+            this.trainings = trainings;
+        }
+    }
+
+    public static class TuneResult {
+        public final String model;
+        public final long candidate;
+        public final Map<String,Object> params;
+        public final Double validationError;
+        public final long elapsed;
+        public final String error;
+
+        public TuneResult(String model, long candidate, Map<String, Object> params, Double validationError, long elapsed, String error) {
+            this.model = model;
+            this.candidate = candidate;
+            this.params = params;
+            this.validationError = validationError;
+            this.elapsed = elapsed;
+            this.error = error;
+        }
+    }
+
+    public static class JobResult {
+        public final long id;
+        public final String model;
+        public final String status;
+        public final double progress;
+        public final long elapsed;
+        public final long waited;
+        public final Double score;
+        public final String error;
+
+        public JobResult(long id, String model, String status, double progress, long elapsed, long waited, Double score, String error) {
+            this.id = id;
+            this.model = model;
+            this.status = status;
+            this.progress = progress;
+            this.elapsed = elapsed;
+            this.waited = waited;
+            this.score = score;
+            this.error = error;
+        }
+    }
+
     public static class NodeResult {
         public final Node node;
 
@@ -81,6 +282,46 @@ apoc.ml.delete(model) yield model
         return Stream.of(new PredictionResult(value, confidence));
     }
 
+    @Procedure
+    public Stream<PredictionResult> predictBatch(@Name("model") String model, @Name("inputs") List<Map<String,Object>> inputs) {
+        MLModel<?> mlModel = MLModel.from(model);
+        double confidence = 0.0d;
+        return mlModel.predictBatch(inputs).map(value -> new PredictionResult(value, confidence));
+    }
+
+    /**
+     * @param nodes a list of nodes or a label
+     * @param mapping column name to property key, columns that are not mapped are read from the property of the same name
+     */
+    @Procedure
+    public Stream<NodePredictionResult> predictNodes(@Name("model") String model, @Name("nodes") Object nodes, @Name(value="propertyMapping",defaultValue="{}") Map<String,String> mapping) {
+        NodePredictions predictions = new NodePredictions(MLModel.from(model), mapping);
+        if (nodes instanceof String) {
+            ResourceIterator<Node> labeled = db.findNodes(Label.label((String) nodes));
+            return predictions.predict(labeled).onClose(labeled::close);
+        }
+        if (nodes instanceof Node) {
+            return predictions.predict(Collections.singletonList((Node) nodes).iterator());
+        }
+        if (nodes instanceof List) {
+            List<Node> list = (List<Node>) nodes;
+            return predictions.predict(list.iterator());
+        }
+        throw new IllegalArgumentException("Expected a list of nodes or a label but got " + nodes);
+    }
+
+    public static class NodePredictionResult {
+        public Node node;
+        public Object value;
+        public double confidence;
+
+        public NodePredictionResult(Node node, Object value, double confidence) {
+            this.node = node;
+            this.value = value;
+            this.confidence = confidence;
+        }
+    }
+
     public static class PredictionResult {
         public Object value;
         public double confidence;
@@ -107,6 +348,11 @@ apoc.ml.delete(model) yield model
             }
             return this;
         }
+
+        ModelResult withInfo(Map<String,Object> infos) {
+            info.putAll(infos);
+            return this;
+        }
     }
 
 }
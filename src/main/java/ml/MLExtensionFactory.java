@@ -0,0 +1,75 @@
+package ml;
+
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.extension.KernelExtensionFactory;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.kernel.impl.spi.KernelContext;
+import org.neo4j.kernel.lifecycle.Lifecycle;
+import org.neo4j.kernel.lifecycle.LifecycleAdapter;
+import org.neo4j.logging.Level;
+import org.neo4j.logging.Log;
+
+import java.io.File;
+
+/**
+ * Registers the models of {@link MLSettings#persistDirectory} when the database starts, so they are loaded
+ * on first use, and saves models to it after they were trained. Also runs the executor of the {@link TrainingJobs}
+ * while the database runs and applies the limits of the {@link TrainingGovernor} and the level of the {@link TrainingLog}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+public class MLExtensionFactory extends KernelExtensionFactory<MLExtensionFactory.Dependencies> {
+
+    public interface Dependencies {
+        Config config();
+
+        LogService log();
+    }
+
+    public MLExtensionFactory() {
+        super("ml");
+    }
+
+    @Override
+    public Lifecycle newInstance(KernelContext context, Dependencies dependencies) throws Throwable {
+        File directory = dependencies.config().get(MLSettings.persistDirectory);
+        Long budget = dependencies.config().get(MLSettings.memoryBudget);
+        ModelRegistry.MemoryPolicy policy = dependencies.config().get(MLSettings.memoryPolicy);
+        int trainingThreads = dependencies.config().get(MLSettings.trainingThreads);
+        int trainingQueue = dependencies.config().get(MLSettings.trainingQueue);
+        int maxTrainings = dependencies.config().get(MLSettings.maxTrainings);
+        int encogThreads = dependencies.config().get(MLSettings.encogThreads);
+        int nd4jThreads = dependencies.config().get(MLSettings.nd4jThreads);
+        Level trainingLogLevel = dependencies.config().get(MLSettings.trainingLogLevel);
+        Log log = dependencies.log().getUserLog(MLExtensionFactory.class);
+        return new LifecycleAdapter() {
+            @Override
+            public void start() throws Throwable {
+                if (budget != null) ModelRegistry.memoryBudget = budget;
+                ModelRegistry.memoryPolicy = policy;
+                TrainingJobs.start(trainingThreads, trainingQueue);
+                TrainingGovernor.configure(maxTrainings, encogThreads, nd4jThreads);
+                // before the first DL4J training or prediction, which would otherwise use all processors
+                if (nd4jThreads > 0) DL4JMLModel.limitThreads();
+                TrainingLog.level = trainingLogLevel;
+                TrainingLog.log = dependencies.log().getUserLog(TrainingLog.class);
+                if (directory == null) return;
+                ModelFile.persistDirectory = directory;
+                int registered = ModelRegistry.scan(directory, log);
+                log.info("Registered %d models from %s", registered, directory);
+            }
+
+            @Override
+            public void stop() throws Throwable {
+                if (budget != null) ModelRegistry.memoryBudget = -1;
+                ModelRegistry.memoryPolicy = ModelRegistry.MemoryPolicy.evict;
+                TrainingJobs.stop();
+                TrainingGovernor.configure(0, 0, 0);
+                TrainingLog.log = null;
+                TrainingLog.level = Level.DEBUG;
+                if (directory != null && directory.equals(ModelFile.persistDirectory)) ModelFile.persistDirectory = null;
+            }
+        };
+    }
+}
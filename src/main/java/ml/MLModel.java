@@ -2,9 +2,20 @@ package ml;
 
 import org.encog.ml.factory.MLMethodFactory;
 import org.neo4j.graphdb.Node;
+import org.neo4j.procedure.TerminationGuard;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
  * @author mh
@@ -48,27 +59,75 @@ public abstract class MLModel<ROW> {
         public final V<Integer> epochs = new V<>("epochs", 50);
         public final V<Integer> hidden = new V<>("hidden", 20);
         public final V<Double> trainPercent = new V<>("trainPercent", 0.75d);
+        public final V<Integer> batchSize = new V<>("batchSize", -1);
+        public final V<Long> spillThreshold = new V<>("spillThreshold", -1L);
+        public final V<String> spillDirectory = new V<>("spillDirectory", System.getProperty("java.io.tmpdir"));
+        public final V<Integer> folds = new V<>("folds", 5);
+        public final V<Double> holdback = new V<>("holdback", 0.3d);
+        public final V<Integer> holdbackSeed = new V<>("holdbackSeed", 1001);
+        public final V<Integer> parallelism = new V<>("parallelism", Runtime.getRuntime().availableProcessors());
+        public final V<Integer> workers = new V<>("workers", 1);
+        public final V<Integer> averagingFrequency = new V<>("averagingFrequency", 1);
+        public final V<Long> maxTrainingMillis = new V<>("maxTrainingMillis", -1L);
+        public final V<Long> coalesceMicros = new V<>("coalesceMicros", 0L);
+        public final V<Integer> coalesceRows = new V<>("coalesceRows", 64);
+
+        Map<String, Object> asMap() {
+            return config;
+        }
+
+        /**
+         * @return a config with the given values replacing the ones of this config
+         */
+        Config with(Map<String, Object> values) {
+            Map<String, Object> merged = new HashMap<>(config);
+            merged.putAll(values);
+            return new Config(merged);
+        }
     }
 
+    static final int PREDICT_CHUNK_SIZE = 1024;
+
     static ConcurrentHashMap<String, MLModel> models = new ConcurrentHashMap<>();
     final String name;
     final Map<String, DataType> types = new HashMap<>();
     final Map<String, Integer> offsets = new HashMap<>();
     final String output;
-    final Config config;
-    final List<ROW> rows = new ArrayList<>();
-    State state;
-    Method methodName;
+    volatile Config config;
+    final RowStore rows;
+    final FeatureEncoder encoder;
+    final PredictionCoalescer<ROW> coalescer;
+    final ModelMetrics metrics = new ModelMetrics();
+    final TrainingLog trainingLog;
+    private final AtomicLong trainingHeap = new AtomicLong();
+    private final AtomicLong trainingOffHeap = new AtomicLong();
+    /** Adds and trainings in flight, {@link #RETIRING} while {@link #evict} checks the model, {@link #CLOSED} after it. */
+    private final AtomicInteger users = new AtomicInteger();
+    private static final int RETIRING = -1, CLOSED = -2;
+    private static final AtomicReferenceFieldUpdater<MLModel, State> STATE = AtomicReferenceFieldUpdater.newUpdater(MLModel.class, State.class, "state");
+
+    volatile State state;
+    volatile Method methodName;
+    private volatile Snapshot snapshot;
+    private long versions;
+    volatile long lastUsed = System.nanoTime();
+    /** Rows the current snapshot was trained on that are not in {@link #rows}, because it was loaded from a model file. */
+    volatile int restoredSets;
 
     public MLModel(String name, Map<String, String> types, String output, Map<String, Object> config) {
         if (models.containsKey(name))
             throw new IllegalArgumentException("Model " + name + " already exists, please remove first");
 
         this.name = name;
+        this.trainingLog = new TrainingLog(name);
         this.state = State.created;
         this.output = output;
         this.config = new Config(config);
         initTypes(types, output);
+        this.rows = new RowStore(this.types, this.offsets, this.config.spillThreshold.get(), this.config.spillDirectory.get(), ModelRegistry::allocated);
+        this.encoder = new FeatureEncoder(this.rows, this.offsets.get(output));
+        long coalesceMicros = this.config.coalesceMicros.get();
+        this.coalescer = coalesceMicros > 0 && predictsBatched() ? new PredictionCoalescer<>(this, coalesceMicros, Math.max(1, this.config.coalesceRows.get())) : null;
 
         this.methodName = Method.ffd;
 
@@ -89,76 +148,591 @@ public abstract class MLModel<ROW> {
 
     public static ML.ModelResult remove(String model) {
         MLModel existing = models.remove(model);
-        return new ML.ModelResult(model, existing == null ? State.unknown : State.removed);
+        if (existing != null) existing.close();
+        boolean persisted = ModelRegistry.remove(model) != null;
+        File directory = ModelFile.persistDirectory;
+        if ((existing != null || persisted) && directory != null) ModelFile.fileFor(directory, model).delete();
+        return new ML.ModelResult(model, existing == null && !persisted ? State.unknown : State.removed);
     }
 
+    /**
+     * @return the model, models that are only registered with their model file are loaded first
+     */
     public static MLModel<?> from(String name) {
         MLModel model = models.get(name);
+        if (model != null) {
+            model.touch();
+            return model;
+        }
+        model = ModelRegistry.get(name);
         if (model != null) return model;
         throw new IllegalArgumentException("No valid ML-Model " + name);
     }
 
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
     public void add(Map<String, Object> inputs, Object output) {
-        if (this.state == State.created || this.state == State.training) {
-            rows.add(asRow(inputs, output));
-            this.state = State.training;
-        } else {
+        long start = System.nanoTime();
+        enter();
+        try {
+            checkAcceptsTrainingData();
+            ModelRegistry.reserve(this, rows.rowBytes());
+            rows.add(inputs, output, offsets.get(this.output));
+            startTraining();
+        } catch (RuntimeException e) {
+            metrics.add.failed();
+            throw e;
+        } finally {
+            exit();
+        }
+        metrics.add.succeeded(start, 1);
+    }
+
+    /**
+     * Adds the rows a caller staged in one step, see {@link RowStore.Staged}.
+     *
+     * @return the number of rows added
+     */
+    int addStaged(RowStore.Staged staged) {
+        long start = System.nanoTime();
+        int added;
+        enter();
+        try {
+            checkAcceptsTrainingData();
+            ModelRegistry.reserve(this, staged.rows() * rows.rowBytes());
+            added = rows.append(staged);
+            if (added > 0) startTraining();
+        } catch (RuntimeException e) {
+            metrics.add.failed();
+            throw e;
+        } finally {
+            exit();
+        }
+        metrics.add.succeeded(start, added);
+        return added;
+    }
+
+    public int addBatch(List<Map<String, Object>> inputs, List<Object> outputs) {
+        long start = System.nanoTime();
+        enter();
+        try {
+            checkAcceptsTrainingData();
+            if (inputs.size() != outputs.size()) {
+                throw new IllegalArgumentException(String.format("Got %d input rows but %d outputs", inputs.size(), outputs.size()));
+            }
+            ModelRegistry.reserve(this, inputs.size() * rows.rowBytes());
+            // all rows are checked before any is added, a caller retrying a failed batch doesn't add duplicates
+            int outputOffset = offsets.get(this.output);
+            RowStore.Staged staged = rows.new Staged(inputs.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                staged.add(inputs.get(i), outputs.get(i), outputOffset);
+            }
+            rows.append(staged);
+            if (!inputs.isEmpty()) startTraining();
+        } catch (RuntimeException e) {
+            metrics.add.failed();
+            throw e;
+        } finally {
+            exit();
+        }
+        metrics.add.succeeded(start, inputs.size());
+        return inputs.size();
+    }
+
+    public int addColumns(Map<String, List<Object>> inputs, List<Object> outputs) {
+        long start = System.nanoTime();
+        int added;
+        enter();
+        try {
+            checkAcceptsTrainingData();
+            ModelRegistry.reserve(this, outputs.size() * rows.rowBytes());
+            added = rows.addColumns(inputs, outputs, offsets.get(this.output));
+            if (added > 0) startTraining();
+        } catch (RuntimeException e) {
+            metrics.add.failed();
+            throw e;
+        } finally {
+            exit();
+        }
+        metrics.add.succeeded(start, added);
+        return added;
+    }
+
+    private void startTraining() {
+        STATE.compareAndSet(this, State.created, State.training);
+    }
+
+    private void checkAcceptsTrainingData() {
+        if (this.state != State.created && this.state != State.training && this.state != State.ready) {
             throw new IllegalArgumentException(String.format("Model %s not able to accept training data, state is: %s", name, state));
         }
     }
 
+    /**
+     * A model loaded from a model file only has the rows added since, retraining on them alone would silently replace
+     * the snapshot trained on the full data.
+     *
+     * @throws IllegalStateException if the rows the current snapshot was trained on are not in memory
+     */
+    void checkRowsAvailable(int size) {
+        if (restoredSets > 0) {
+            throw new IllegalStateException(String.format("Model %s was loaded from its model file without the %d rows it was trained on, " +
+                    "it can't be retrained from the %d rows added since, create a new model with all rows instead", name, restoredSets, size));
+        }
+    }
+
     protected abstract ROW asRow(Map<String, Object> inputs, Object output);
 
+    /**
+     * @param inputs input values arranged by column offset
+     */
+    protected abstract ROW asRow(Object[] inputs);
+
+    /**
+     * Trains a new snapshot from all rows added so far, unless the current snapshot was already trained from them.
+     * Concurrent calls wait for each other, predictions and adds continue while training.
+     */
     public void train() {
-        if (state != State.ready) {
-            if (state != State.training) {
-                throw new IllegalArgumentException(String.format("Model %s is not ready to predict, it has no training data, state is %s", name, state));
+        train(null, null);
+    }
+
+    /**
+     * @param listener is notified of the training progress, if the model is trained by this call
+     * @param guard aborts the training when the transaction it was started from is terminated, {@code null} if there is none
+     */
+    public synchronized void train(TrainingListener listener, TerminationGuard guard) {
+        if (state != State.ready && state != State.training) {
+            throw new IllegalArgumentException(String.format("Model %s is not ready to predict, it has no training data, state is %s", name, state));
+        }
+        enter();
+        try {
+            int size = rows.size();
+            Snapshot current = snapshot;
+            if (current != null && size + restoredSets <= current.trainingSets) return;
+            checkRowsAvailable(size);
+            long start = System.nanoTime();
+            try {
+                ModelRegistry.reserve(this, 0);
+                publish(TrainingGovernor.train(this, new Training(size, config, methodName, listener, guard)));
+            } catch (RuntimeException e) {
+                metrics.train.failed();
+                throw e;
+            }
+            metrics.train.succeeded(start, size);
+            persist();
+        } finally {
+            exit();
+        }
+    }
+
+    /**
+     * Makes a snapshot that was trained with another config and method the current one, later trainings use them too.
+     *
+     * @throws IllegalStateException if the current snapshot was trained on more rows, e.g. by a training that finished while tuning
+     */
+    synchronized void promote(Snapshot next, Config config, Method method) {
+        Snapshot current = snapshot;
+        if (current != null && current.trainingSets > next.trainingSets) {
+            throw new IllegalStateException(String.format("Model %s was trained on %d rows since, the candidate only on %d", name, current.trainingSets, next.trainingSets));
+        }
+        this.config = config;
+        this.methodName = method;
+        publish(next);
+        persist();
+    }
+
+    /**
+     * Immutable trained state of a model, see {@link #publish}.
+     */
+    abstract static class Snapshot {
+        final int trainingSets;
+        final double validationError;
+        final Map<String, Object> summary;
+        long version;
+
+        /**
+         * @param validationError error on the rows held back from training, {@code NaN} if unknown
+         * @param summary evaluation metrics and description of the trained state, computed once and returned by {@code ml.info}
+         */
+        Snapshot(int trainingSets, double validationError, Map<String, Object> summary) {
+            this.trainingSets = trainingSets;
+            this.validationError = validationError;
+            this.summary = Collections.unmodifiableMap(new LinkedHashMap<>(summary));
+        }
+
+        /**
+         * @return estimated heap used by the trained parameters, normalization and retained training data
+         */
+        long heapBytes() {
+            return 0;
+        }
+
+        /**
+         * @return estimated native memory used by the trained parameters and normalization
+         */
+        long offHeapBytes() {
+            return 0;
+        }
+
+        long memoryBytes() {
+            return heapBytes() + offHeapBytes();
+        }
+
+        /**
+         * Releases what the snapshot holds for predictions once it was replaced or its model was closed,
+         * predictions that still use it keep working.
+         */
+        void close() {
+        }
+    }
+
+    /**
+     * @return estimated heap used by the rows, the current snapshot and running trainings
+     */
+    long heapBytes() {
+        Snapshot current = snapshot;
+        return rows.heapBytes() + (current == null ? 0 : current.heapBytes()) + trainingHeap.get();
+    }
+
+    /**
+     * @return estimated native memory used by the current snapshot and running trainings
+     */
+    long offHeapBytes() {
+        Snapshot current = snapshot;
+        return (current == null ? 0 : current.offHeapBytes()) + trainingOffHeap.get();
+    }
+
+    long memoryBytes() {
+        return heapBytes() + offHeapBytes();
+    }
+
+    /**
+     * Accounts for the memory a training is about to allocate until {@link #release}, see {@link ModelRegistry#reserve}.
+     */
+    void reserve(long heap, long offHeap) {
+        ModelRegistry.reserve(this, heap + offHeap);
+        trainingHeap.addAndGet(heap);
+        trainingOffHeap.addAndGet(offHeap);
+        ModelRegistry.allocated(heap + offHeap);
+    }
+
+    void release(long heap, long offHeap) {
+        trainingHeap.addAndGet(-heap);
+        trainingOffHeap.addAndGet(-offHeap);
+        ModelRegistry.allocated(-heap - offHeap);
+    }
+
+    /**
+     * Marks an add or training as in flight, the model is not evicted before the matching {@link #exit}.
+     *
+     * @throws IllegalStateException if the model was evicted or removed, it has to be looked up again with {@link #from}
+     */
+    void enter() {
+        while (true) {
+            int current = users.get();
+            if (current == CLOSED) {
+                throw new IllegalStateException(String.format("Model %s was evicted or removed while in use, look it up again", name));
             }
-            doTrain();
+            if (current == RETIRING) Thread.yield();
+            else if (users.compareAndSet(current, current + 1)) return;
         }
     }
 
+    void exit() {
+        users.getAndUpdate(current -> current > 0 ? current - 1 : current);
+    }
+
+    /**
+     * Removes an idle model from {@link #models} and closes it, models with adds or trainings in flight, pending rows
+     * or no trained snapshot stay.
+     *
+     * @return {@code true} if the model was evicted
+     */
+    boolean evict() {
+        if (!users.compareAndSet(0, RETIRING)) return false;
+        if (state != State.ready || hasPendingRows() || !models.remove(name, this)) {
+            users.set(0);
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    /**
+     * Releases the rows and takes the memory of the model off {@link ModelRegistry#used()}, once it is no longer in {@link #models}.
+     * Later adds and trainings on this instance fail.
+     */
+    void close() {
+        users.set(CLOSED);
+        rows.close();
+        Snapshot current = snapshot;
+        if (current != null) {
+            current.close();
+            ModelRegistry.allocated(-current.memoryBytes());
+        }
+    }
+
+    /**
+     * Parameters of one run of {@link #doTrain}, which reports its progress through it and calls {@link #checkCancelled()}
+     * between epochs, folds and iterations. A cancelled training leaves the model with the snapshot it had before.
+     */
+    static class Training {
+        private static final AtomicLong TRAININGS = new AtomicLong();
+
+        final long id = TRAININGS.incrementAndGet();
+        final int size;
+        final Config config;
+        final Method method;
+        private final TrainingListener listener;
+        private final TerminationGuard guard;
+        private volatile long deadline = Long.MAX_VALUE;
+        private volatile boolean cancelled;
+
+        Training(int size, Config config, Method method, TrainingListener listener, TerminationGuard guard) {
+            this.size = size;
+            this.config = config;
+            this.method = method;
+            this.listener = listener;
+            this.guard = guard;
+        }
+
+        /**
+         * Starts the clock for {@link Config#maxTrainingMillis}, the time waiting for the {@link TrainingGovernor} doesn't count.
+         */
+        void started() {
+            long max = config.maxTrainingMillis.get();
+            if (max > 0) deadline = System.currentTimeMillis() + max;
+        }
+
+        /**
+         * Stops the training at its next {@link #checkCancelled()}.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @throws org.neo4j.graphdb.TransactionTerminatedException if the transaction that started the training was terminated
+         * @throws IllegalStateException if the training was cancelled or took longer than {@link Config#maxTrainingMillis}
+         */
+        void checkCancelled() {
+            if (guard != null) guard.check();
+            if (cancelled) throw new IllegalStateException("Training was cancelled");
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(String.format("Training exceeded maxTrainingMillis of %d", config.maxTrainingMillis.get()));
+            }
+        }
+
+        /**
+         * @param progress between 0 and 1
+         * @param score latest training score or error, {@code null} if unknown
+         */
+        void report(double progress, Double score) {
+            if (listener != null) listener.progress(progress, score);
+        }
+    }
+
+    /**
+     * Replaces the trained state of the model, predictions that already read the previous snapshot finish with it.
+     */
+    protected void publish(Snapshot next) {
+        next.version = ++versions;
+        Snapshot previous = this.snapshot;
+        this.snapshot = next;
+        this.state = State.ready;
+        ModelRegistry.allocated(next.memoryBytes() - (previous == null ? 0 : previous.memoryBytes()));
+        if (previous != null) previous.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    protected <S extends Snapshot> S snapshot() {
+        return (S) snapshot;
+    }
+
+    /**
+     * @return true if rows were added after the current snapshot was trained
+     */
+    boolean hasPendingRows() {
+        Snapshot current = snapshot;
+        return rows.count() + restoredSets > (current == null ? 0 : current.trainingSets);
+    }
+
+    /**
+     * Saves the trained model to the auto-persist directory, if one is configured.
+     */
+    private void persist() {
+        File directory = ModelFile.persistDirectory;
+        if (directory == null || state != State.ready) return;
+        try {
+            File file = ModelFile.fileFor(directory, name);
+            ModelFile.save(this, file);
+            ModelRegistry.saved(this, file);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not persist model " + name + " to " + directory, e);
+        }
+    }
+
+    /**
+     * Predicts a single row, with a {@link PredictionCoalescer} concurrent calls are predicted as one batch.
+     */
     public Object predict(Map<String, Object> inputs) {
-        if (state != State.ready) {
-            train();
+        Snapshot current = readyToPredict();
+        long start = System.nanoTime();
+        Object predicted;
+        try {
+            predicted = coalescer == null ? doPredict(current, inputs) : coalescer.predict(current, asRow(inputs, null));
+        } catch (RuntimeException e) {
+            metrics.predict.failed();
+            throw e;
+        }
+        metrics.predict.succeeded(start, 1);
+        // todo confidence
+        return predicted;
+    }
+
+    /**
+     * Predicts the inputs chunk by chunk, the chunks are only computed as the stream is consumed.
+     * All chunks are predicted by the snapshot that was current when the stream was created.
+     */
+    public Stream<Object> predictBatch(List<Map<String, Object>> inputs) {
+        Snapshot current = readyToPredict();
+        int chunks = (inputs.size() + PREDICT_CHUNK_SIZE - 1) / PREDICT_CHUNK_SIZE;
+        return IntStream.range(0, chunks).boxed().flatMap(chunk -> {
+            List<Map<String, Object>> slice = inputs.subList(chunk * PREDICT_CHUNK_SIZE, Math.min(inputs.size(), (chunk + 1) * PREDICT_CHUNK_SIZE));
+            long start = System.nanoTime();
+            Object[] predicted;
+            try {
+                List<ROW> lines = new ArrayList<>(slice.size());
+                for (Map<String, Object> input : slice) {
+                    lines.add(asRow(input, null));
+                }
+                predicted = doPredict(current, lines);
+            } catch (RuntimeException e) {
+                metrics.predictBatch.failed();
+                throw e;
+            }
+            metrics.predictBatch.succeeded(start, slice.size());
+            return Arrays.stream(predicted);
+        });
+    }
+
+    /**
+     * Predicts a chunk of rows whose input values are arranged by column offset, with a snapshot from {@link #readyToPredict()}.
+     */
+    Object[] predict(Snapshot snapshot, List<Object[]> inputs) {
+        long start = System.nanoTime();
+        Object[] predicted;
+        try {
+            List<ROW> lines = new ArrayList<>(inputs.size());
+            for (Object[] input : inputs) {
+                lines.add(asRow(input));
+            }
+            predicted = doPredict(snapshot, lines);
+        } catch (RuntimeException e) {
+            metrics.predictBatch.failed();
+            throw e;
         }
-        if (state == State.ready) {
-            ROW line = asRow(inputs, null);
+        metrics.predictBatch.succeeded(start, inputs.size());
+        return predicted;
+    }
 
-            Object predicted = doPredict(line);
-            // todo confidence
-            return predicted;
-        } else {
+    /**
+     * @return the current snapshot, a model that was never trained is trained first
+     */
+    Snapshot readyToPredict() {
+        Snapshot current = snapshot;
+        if (current != null) return current;
+        train();
+        current = snapshot;
+        if (current == null) {
             throw new IllegalArgumentException(String.format("Model %s is not ready to predict, state is %s", name, state));
         }
+        return current;
+    }
+
+    /**
+     * Single-row prediction from the raw inputs, implementations can override this to skip {@link #asRow}.
+     */
+    protected Object doPredict(Snapshot snapshot, Map<String, Object> inputs) {
+        return doPredict(snapshot, asRow(inputs, null));
+    }
+
+    protected abstract Object doPredict(Snapshot snapshot, ROW line);
+
+    /**
+     * Predicts a chunk of rows at once, implementations should share buffers or forward passes across the chunk.
+     */
+    protected Object[] doPredict(Snapshot snapshot, List<ROW> lines) {
+        Object[] result = new Object[lines.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = doPredict(snapshot, lines.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return {@code true} if {@link #doPredict(Snapshot, List)} is cheaper than predicting the rows one by one,
+     * only then {@link Config#coalesceMicros} coalesces concurrent predictions, it would just add latency otherwise
+     */
+    protected boolean predictsBatched() {
+        return false;
+    }
+
+    /**
+     * Trains from the first {@link Training#size} rows with the config and method of the training and returns the result
+     * without publishing it. Rows beyond may be added concurrently and several trainings of a model may run at once.
+     */
+    protected abstract Snapshot doTrain(Training training);
+
+    interface TrainingListener {
+        void progress(double progress, Double score);
     }
 
-    protected abstract Object doPredict(ROW line);
+    /**
+     * Writes the trained parameters and normalization of the model, the schema is written by {@link ModelFile}.
+     */
+    protected abstract void writeTrained(Snapshot snapshot, DataOutputStream out) throws IOException;
 
-    protected abstract void doTrain();
+    /**
+     * Restores and publishes what {@link #writeTrained} wrote, the schema, config and class dictionaries are already in place.
+     *
+     * @param trainingSets number of rows the snapshot was trained on, they are not part of the model file
+     */
+    protected abstract void readTrained(DataInputStream in, int trainingSets) throws IOException;
 
     public ML.ModelResult asResult() {
         ML.ModelResult result =
                 new ML.ModelResult(this.name, this.state)
                         .withInfo("methodName", methodName);
 
-        if (rows.size() > 0) {
-            result = result.withInfo("trainingSets", (long) rows.size());
+        // doesn't merge the rows buffered by concurrent adds, that is left to the training
+        int count = rows.count();
+        if (count > 0) {
+            result = result.withInfo("trainingSets", (long) count);
         }
-        if (state == State.ready) {
-            // todo check how expensive this is
-            result = resultWithInfo(result);
+        int spilled = rows.spilled();
+        if (spilled > 0) {
+            result = result.withInfo("spilledSets", (long) spilled);
+        }
+        result = result.withInfo("heapBytes", heapBytes(), "offHeapBytes", offHeapBytes());
+        Snapshot current = snapshot;
+        if (state == State.ready && current != null) {
+            result = result.withInfo("version", current.version, "trainedSets", (long) current.trainingSets).withInfo(current.summary);
         }
-        return result;
-    }
-
-    protected ML.ModelResult resultWithInfo(ML.ModelResult result) {
         return result;
     }
 
     ;
 
     public static MLModel create(String name, Map<String, String> types, String output, Map<String, Object> config) {
+        if (ModelRegistry.contains(name))
+            throw new IllegalArgumentException("Model " + name + " already exists, please remove first");
+        return instantiate(name, types, output, config);
+    }
+
+    static MLModel instantiate(String name, Map<String, String> types, String output, Map<String, Object> config) {
         String framework = config.getOrDefault("framework", "encog").toString().toLowerCase();
         switch (framework) {
             case "encog":
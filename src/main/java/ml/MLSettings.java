@@ -0,0 +1,52 @@
+package ml;
+
+import org.neo4j.configuration.Description;
+import org.neo4j.configuration.LoadableConfig;
+import org.neo4j.graphdb.config.Setting;
+
+import org.neo4j.logging.Level;
+
+import java.io.File;
+
+import static org.neo4j.kernel.configuration.Settings.BYTES;
+import static org.neo4j.kernel.configuration.Settings.INTEGER;
+import static org.neo4j.kernel.configuration.Settings.NO_DEFAULT;
+import static org.neo4j.kernel.configuration.Settings.PATH;
+import static org.neo4j.kernel.configuration.Settings.options;
+import static org.neo4j.kernel.configuration.Settings.setting;
+
+/**
+ * Settings of the ml procedures in {@code neo4j.conf}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+public class MLSettings implements LoadableConfig {
+
+    @Description("Directory that trained models are saved to and loaded from on startup, models are only kept in memory if not set.")
+    public static final Setting<File> persistDirectory = setting("ml.persist.directory", PATH, NO_DEFAULT);
+
+    @Description("Estimated heap and native memory of all models (training rows, parameters, normalization), beyond it least recently used models with a model file are unloaded and loaded again on their next use, adds and trainings that still don't fit are rejected.")
+    public static final Setting<Long> memoryBudget = setting("ml.memory.budget", BYTES, NO_DEFAULT);
+
+    @Description("What happens when ml.memory.budget is exceeded: evict unloads cold models first, reject only rejects adds and trainings.")
+    public static final Setting<ModelRegistry.MemoryPolicy> memoryPolicy = setting("ml.memory.policy", options(ModelRegistry.MemoryPolicy.class), "evict");
+
+    @Description("Number of threads that run background trainings started with ml.trainAsync.")
+    public static final Setting<Integer> trainingThreads = setting("ml.training.threads", INTEGER, "1");
+
+    @Description("Number of background trainings that can wait for a training thread, further ones are rejected.")
+    public static final Setting<Integer> trainingQueue = setting("ml.training.queue", INTEGER, "100");
+
+    @Description("Number of models that train at the same time, further trainings wait for one to finish, 0 for no limit.")
+    public static final Setting<Integer> maxTrainings = setting("ml.training.max_concurrent", INTEGER, "0");
+
+    @Description("Number of threads an Encog training uses for propagation and cross-validation folds, 0 for all processors.")
+    public static final Setting<Integer> encogThreads = setting("ml.training.encog_threads", INTEGER, "0");
+
+    @Description("Number of OpenMP and BLAS threads ND4J uses for DL4J training and workers, 0 for the ND4J default. Applied when the database starts, it stays for the lifetime of the process.")
+    public static final Setting<Integer> nd4jThreads = setting("ml.training.nd4j_threads", INTEGER, "0");
+
+    @Description("Level at which the epochs, folds and validation metrics of trainings are written to the user log, NONE to only keep them for ml.trainingLog.")
+    public static final Setting<Level> trainingLogLevel = setting("ml.training.log_level", options(Level.class), "DEBUG");
+}
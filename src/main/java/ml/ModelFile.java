@@ -0,0 +1,299 @@
+package ml;
+
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary file format for trained models.
+ *
+ * The header holds the schema (types in offset order, output, method), the number of rows the model was trained on,
+ * the config and the class dictionaries, it is followed by the framework specific payload written by {@link MLModel#writeTrained}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class ModelFile {
+    static final String EXTENSION = ".model";
+    private static final int MAGIC = 0x4E4D4C31; // NML1
+    private static final int VERSION = 2;
+
+    private static final byte NULL = 0, STRING = 1, LONG = 2, DOUBLE = 3, BOOLEAN = 4;
+
+    /** Directory that trained models are saved to automatically, {@code null} if auto-persistence is off. */
+    static volatile File persistDirectory;
+
+    static File fileFor(File directory, String model) {
+        try {
+            return new File(directory, URLEncoder.encode(model, "UTF-8") + EXTENSION);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void save(MLModel<?> model, File file) throws IOException {
+        MLModel.Snapshot snapshot = model.snapshot();
+        if (snapshot == null) {
+            throw new IllegalArgumentException(String.format("Model %s is not trained, state is %s", model.name, model.state));
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("Can't create directory " + parent);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(model, snapshot, out);
+            model.writeTrained(snapshot, out);
+        }
+        if (file.exists() && !file.delete()) throw new IOException("Can't replace " + file);
+        if (!tmp.renameTo(file)) throw new IOException("Can't rename " + tmp + " to " + file);
+    }
+
+    /**
+     * Loads the model into {@link MLModel#models}, the file is memory-mapped and the frameworks read their
+     * parameters straight from the mapping instead of a copy of the file on the heap.
+     */
+    static MLModel<?> load(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            DataInputStream in = new DataInputStream(new BufferInputStream(buffer));
+            Header header = readHeader(in);
+            MLModel<?> model = create(header, in);
+            try {
+                model.readTrained(in, header.trainingSets);
+                return model;
+            } catch (IOException | RuntimeException e) {
+                MLModel.remove(model.name);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads only the schema and config of a model file, without the class dictionaries and the trained parameters.
+     */
+    static Header readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 4096))) {
+            return readHeader(in);
+        }
+    }
+
+    private static void writeHeader(MLModel<?> model, MLModel.Snapshot snapshot, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(model.name);
+        out.writeUTF(model.output);
+        out.writeUTF(model.methodName.name());
+        out.writeInt(snapshot.trainingSets);
+        RowStore rows = model.rows;
+        out.writeInt(rows.width());
+        for (int col = 0; col < rows.width(); col++) {
+            out.writeUTF(rows.name(col));
+            out.writeUTF(rows.type(col).name().substring(1));
+        }
+        Map<String, Object> config = model.config.asMap();
+        out.writeInt(config.size());
+        for (Map.Entry<String, Object> entry : config.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+        for (int col = 0; col < rows.width(); col++) {
+            if (rows.type(col) != MLModel.DataType._class) continue;
+            List<String> values = rows.dictionary(col).values();
+            out.writeInt(values.size());
+            for (String value : values) {
+                out.writeUTF(value);
+            }
+        }
+    }
+
+    private static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a model file");
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) throw new IOException("Unsupported model file version " + version);
+        String name = in.readUTF();
+        String output = in.readUTF();
+        MLModel.Method method = MLModel.Method.valueOf(in.readUTF());
+        // version 1 files don't know the number of rows they were trained on
+        int trainingSets = version > 1 ? in.readInt() : 0;
+        int width = in.readInt();
+        String[] names = new String[width];
+        Map<String, String> types = new LinkedHashMap<>();
+        for (int col = 0; col < width; col++) {
+            names[col] = in.readUTF();
+            types.put(names[col], in.readUTF());
+        }
+        int configSize = in.readInt();
+        Map<String, Object> config = new HashMap<>(configSize);
+        for (int i = 0; i < configSize; i++) {
+            String key = in.readUTF();
+            config.put(key, readValue(in));
+        }
+        return new Header(name, output, method, trainingSets, names, types, config);
+    }
+
+    private static MLModel<?> create(Header header, DataInputStream in) throws IOException {
+        MLModel<?> model = MLModel.instantiate(header.name, header.types, header.output, header.config);
+        model.methodName = header.method;
+        model.restoredSets = header.trainingSets;
+        for (int col = 0; col < header.names.length; col++) {
+            if (!model.offsets.get(header.names[col]).equals(col)) {
+                MLModel.remove(header.name);
+                throw new IOException("Column order of " + header.names[col] + " does not match the model file");
+            }
+            if (model.rows.type(col) != MLModel.DataType._class) continue;
+            RowStore.Dictionary dictionary = model.rows.dictionary(col);
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                dictionary.encode(in.readUTF());
+            }
+        }
+        return model;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return a stream over the next length-prefixed block written by {@link #writeBytes}, it must be read up to its end
+     */
+    static InputStream payload(DataInputStream in) throws IOException {
+        return new PayloadInputStream(in, in.readInt());
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            out.writeByte(LONG);
+            out.writeLong(((Number) value).longValue());
+        } else {
+            out.writeByte(STRING);
+            out.writeUTF(value.toString());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL: return null;
+            case BOOLEAN: return in.readBoolean();
+            case DOUBLE: return in.readDouble();
+            case LONG: return in.readLong();
+            case STRING: return in.readUTF();
+            default: throw new IOException("Unknown value type " + type);
+        }
+    }
+
+    static class Header {
+        final String name;
+        final String output;
+        final MLModel.Method method;
+        final int trainingSets;
+        final String[] names;
+        final Map<String, String> types;
+        final Map<String, Object> config;
+
+        Header(String name, String output, MLModel.Method method, int trainingSets, String[] names, Map<String, String> types, Map<String, Object> config) {
+            this.name = name;
+            this.output = output;
+            this.method = method;
+            this.trainingSets = trainingSets;
+            this.names = names;
+            this.types = types;
+            this.config = config;
+        }
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Bounded view of a block of the model file, closing it leaves the underlying stream open
+     * because the frameworks close the streams they read from.
+     */
+    private static class PayloadInputStream extends InputStream {
+        private final InputStream in;
+        private int remaining;
+
+        PayloadInputStream(InputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining <= 0) return -1;
+            int count = in.read(bytes, off, Math.min(len, remaining));
+            if (count > 0) remaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(remaining, in.available());
+        }
+
+        @Override
+        public void close() throws IOException {
+            while (remaining > 0 && skip(remaining) > 0) ;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long count = in.skip(Math.min(n, remaining));
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call counts, error counts, rows and latencies of the operations of one model since it was created or loaded.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class ModelMetrics {
+    final Operation predict = new Operation("predict");
+    final Operation predictBatch = new Operation("predictBatch");
+    final Operation add = new Operation("add");
+    final Operation train = new Operation("train");
+    private final long started = System.nanoTime();
+
+    static class Operation {
+        final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param start {@link System#nanoTime()} when the call started
+         */
+        void succeeded(long start, long rows) {
+            latencies.record(System.nanoTime() - start);
+            calls.increment();
+            this.rows.add(rows);
+        }
+
+        void failed() {
+            calls.increment();
+            errors.increment();
+        }
+    }
+
+    /**
+     * @return one result per operation, latencies in microseconds
+     */
+    List<ML.MetricsResult> asResults(String model) {
+        double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+        List<ML.MetricsResult> results = new ArrayList<>(4);
+        for (Operation op : new Operation[]{predict, predictBatch, add, train}) {
+            LatencyHistogram.Snapshot latencies = op.latencies.snapshot();
+            long rows = op.rows.sum();
+            results.add(new ML.MetricsResult(model, op.name, op.calls.sum(), op.errors.sum(), rows, rows / seconds,
+                    latencies.percentile(50) / 1000d, latencies.percentile(99) / 1000d, latencies.percentile(99.9) / 1000d, latencies.max() / 1000d));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,178 @@
+package ml;
+
+import org.neo4j.logging.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Catalogue of the models that have a model file, only their header is kept in memory.
+ *
+ * A registered model that is not in {@link MLModel#models} is loaded from its file on first use.
+ * When the estimated memory of all loaded models ({@link MLModel#memoryBytes()}) adds up to more than the memory budget,
+ * the least recently used ones that have a model file are unloaded again, they stay registered and are loaded on their
+ * next use. Models with rows that were added after their last training are kept, so that no training data is lost.
+ * Adds and trainings that would still exceed the budget are rejected, with {@link MemoryPolicy#reject} no model
+ * is unloaded to make room.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class ModelRegistry {
+    /** Budget in bytes for the estimated memory of all loaded models, negative for no limit. */
+    static volatile long memoryBudget = -1;
+    static volatile MemoryPolicy memoryPolicy = MemoryPolicy.evict;
+
+    enum MemoryPolicy {evict, reject}
+
+    /** Estimated memory of all loaded models, kept up to date by their row stores, snapshots and trainings. */
+    private static final AtomicLong used = new AtomicLong();
+
+    private static final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    static class Entry {
+        final File file;
+        final ModelFile.Header header;
+
+        Entry(File file, ModelFile.Header header) {
+            this.file = file;
+            this.header = header;
+        }
+    }
+
+    /**
+     * Registers all model files of the directory without loading them.
+     * @return the number of registered models
+     */
+    static int scan(File directory, Log log) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(ModelFile.EXTENSION));
+        if (files == null) return 0;
+        int count = 0;
+        for (File file : files) {
+            try {
+                ModelFile.Header header = ModelFile.readHeader(file);
+                if (MLModel.models.containsKey(header.name)) continue;
+                entries.put(header.name, new Entry(file, header));
+                count++;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read model file %s: %s", file, e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    static boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return the loaded model, {@code null} if there is no model file for it
+     */
+    static MLModel<?> get(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) return null;
+        MLModel<?> model;
+        synchronized (entry) {
+            model = MLModel.models.get(name);
+            if (model == null) {
+                try {
+                    model = ModelFile.load(entry.file);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Could not load model " + name + " from " + entry.file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        model.touch();
+        evict(model);
+        return model;
+    }
+
+    /**
+     * Loads a model file under the name stored in it, which must not be taken yet.
+     */
+    static MLModel<?> load(File file) throws IOException {
+        ModelFile.Header header = ModelFile.readHeader(file);
+        if (MLModel.models.containsKey(header.name) || entries.containsKey(header.name)) {
+            throw new IllegalArgumentException("Model " + header.name + " already exists, please remove first");
+        }
+        MLModel<?> model = ModelFile.load(file);
+        entries.put(header.name, new Entry(file, header));
+        model.touch();
+        evict(model);
+        return model;
+    }
+
+    /**
+     * Records the file a model was saved to, from then on it can be unloaded.
+     */
+    static void saved(MLModel<?> model, File file) throws IOException {
+        entries.put(model.name, new Entry(file, ModelFile.readHeader(file)));
+        model.touch();
+        evict(model);
+    }
+
+    static Entry remove(String name) {
+        return entries.remove(name);
+    }
+
+    /**
+     * Checks that {@code bytes} more fit into the memory budget, unloading cold models first with {@link MemoryPolicy#evict}.
+     * @throws IllegalStateException if the models would use more than the budget
+     */
+    static void reserve(MLModel<?> model, long bytes) {
+        long budget = memoryBudget;
+        if (budget < 0 || used.get() + bytes <= budget) return;
+        evict(model, bytes);
+        long used = used();
+        if (used + bytes > budget) {
+            throw new IllegalStateException(String.format("Memory budget of %d bytes exceeded, models use %d bytes and %s needs %d more", budget, used, model.name, bytes));
+        }
+    }
+
+    /**
+     * @return the estimated memory of all loaded models
+     */
+    static long used() {
+        return used.get();
+    }
+
+    /**
+     * @param bytes memory a model allocated, negative if it released memory
+     */
+    static void allocated(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    private static void evict(MLModel<?> keep) {
+        evict(keep, 0);
+    }
+
+    /**
+     * Unloads the least recently used models that have a model file until the loaded models fit into the budget again.
+     * @param keep the model that is about to be used, it is never unloaded
+     * @param bytes memory that is about to be allocated
+     */
+    private static synchronized void evict(MLModel<?> keep, long bytes) {
+        long budget = memoryBudget;
+        if (budget < 0 || memoryPolicy != MemoryPolicy.evict) return;
+        long used = used() + bytes;
+        if (used <= budget) return;
+        List<MLModel<?>> loaded = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            MLModel<?> model = MLModel.models.get(entry.header.name);
+            if (model == null || model == keep) continue;
+            loaded.add(model);
+        }
+        loaded.sort(Comparator.comparingLong(m -> m.lastUsed));
+        for (MLModel<?> model : loaded) {
+            if (used <= budget) break;
+            long memory = model.memoryBytes();
+            if (model.evict()) used -= memory;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ml;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Predicts nodes from their properties, chunk by chunk as the result stream is consumed.
+ *
+ * Only one chunk of nodes and their predictions is held at a time, all chunks are predicted by the snapshot
+ * that was current when the stream was created. Nodes that miss one of the input properties are returned
+ * with a {@code null} value.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class NodePredictions {
+    private final MLModel<?> model;
+    private final String[] properties;
+
+    /**
+     * @param mapping column name to property key, columns that are not mapped are read from the property of the same name
+     */
+    NodePredictions(MLModel<?> model, Map<String, String> mapping) {
+        this.model = model;
+        this.properties = new String[model.offsets.size() - 1];
+        model.offsets.forEach((column, offset) -> {
+            if (!column.equals(model.output)) properties[offset] = mapping.getOrDefault(column, column);
+        });
+    }
+
+    Stream<ML.NodePredictionResult> predict(Iterator<Node> nodes) {
+        MLModel.Snapshot snapshot = model.readyToPredict();
+        Iterator<List<ML.NodePredictionResult>> chunks = new Iterator<List<ML.NodePredictionResult>>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public List<ML.NodePredictionResult> next() {
+                return predictChunk(snapshot, nodes);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(List::stream);
+    }
+
+    private List<ML.NodePredictionResult> predictChunk(MLModel.Snapshot snapshot, Iterator<Node> nodes) {
+        List<Node> chunk = new ArrayList<>(MLModel.PREDICT_CHUNK_SIZE);
+        List<Object[]> inputs = new ArrayList<>(MLModel.PREDICT_CHUNK_SIZE);
+        BitSet missing = new BitSet();
+        while (chunk.size() < MLModel.PREDICT_CHUNK_SIZE && nodes.hasNext()) {
+            Node node = nodes.next();
+            Object[] values = read(node);
+            if (values == null) {
+                missing.set(chunk.size());
+            } else {
+                inputs.add(values);
+            }
+            chunk.add(node);
+        }
+        Object[] predicted = inputs.isEmpty() ? new Object[0] : model.predict(snapshot, inputs);
+        List<ML.NodePredictionResult> results = new ArrayList<>(chunk.size());
+        for (int i = 0, p = 0; i < chunk.size(); i++) {
+            results.add(new ML.NodePredictionResult(chunk.get(i), missing.get(i) ? null : predicted[p++], 0.0d));
+        }
+        return results;
+    }
+
+    /**
+     * @return the input values arranged by column offset, {@code null} if a property is missing
+     */
+    private Object[] read(Node node) {
+        Object[] values = new Object[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            Object value = node.getProperty(properties[i], null);
+            if (value == null) return null;
+            values[i] = value;
+        }
+        return values;
+    }
+}
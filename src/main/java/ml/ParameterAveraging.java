@@ -0,0 +1,110 @@
+package ml;
+
+import org.deeplearning4j.nn.api.Updater;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Data-parallel training of a {@link MultiLayerNetwork} on replicas that start from the same parameters.
+ *
+ * The mini-batches of an epoch are dealt out in rounds, every worker fits {@code averagingFrequency} batches on its
+ * replica, then the parameters and updater state of the replicas are averaged and copied back into all of them.
+ * The first replica is the network itself, so it holds the averaged parameters after training.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class ParameterAveraging implements AutoCloseable {
+    private final List<MultiLayerNetwork> replicas;
+    private final int averagingFrequency;
+    private final ForkJoinPool pool;
+
+    ParameterAveraging(MultiLayerNetwork model, int workers, int averagingFrequency) {
+        this.replicas = new ArrayList<>(workers);
+        this.replicas.add(model);
+        for (int i = 1; i < workers; i++) {
+            this.replicas.add(model.clone());
+        }
+        this.averagingFrequency = averagingFrequency;
+        this.pool = new ForkJoinPool(workers);
+    }
+
+    int workers() {
+        return replicas.size();
+    }
+
+    /**
+     * Splits a dataset that fits in memory so that every worker gets {@code averagingFrequency} batches per epoch.
+     */
+    List<DataSet> split(DataSet data) {
+        int batches = replicas.size() * averagingFrequency;
+        return data.batchBy((data.numExamples() + batches - 1) / batches);
+    }
+
+    /**
+     * Fits one epoch of mini-batches, they are read from the calling thread.
+     */
+    void fit(Iterator<DataSet> batches) {
+        while (batches.hasNext()) {
+            List<List<DataSet>> shards = new ArrayList<>(replicas.size());
+            while (shards.size() < replicas.size() && batches.hasNext()) {
+                List<DataSet> shard = new ArrayList<>(averagingFrequency);
+                while (shard.size() < averagingFrequency && batches.hasNext()) {
+                    shard.add(batches.next());
+                }
+                shards.add(shard);
+            }
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(shards.size());
+            for (int i = 0; i < shards.size(); i++) {
+                MultiLayerNetwork replica = replicas.get(i);
+                List<DataSet> shard = shards.get(i);
+                tasks.add(pool.submit(() -> {
+                    for (DataSet batch : shard) {
+                        replica.fit(batch);
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+            average(shards.size());
+        }
+    }
+
+    /**
+     * Averages the first {@code count} replicas, the ones that fitted batches in the last round, into all replicas.
+     */
+    private void average(int count) {
+        INDArray params = replicas.get(0).params().dup();
+        for (int i = 1; i < count; i++) {
+            params.addi(replicas.get(i).params());
+        }
+        params.divi(count);
+
+        Updater updater = replicas.get(0).getUpdater();
+        INDArray state = updater == null || updater.getStateViewArray() == null ? null : updater.getStateViewArray().dup();
+        if (state != null) {
+            for (int i = 1; i < count; i++) {
+                state.addi(replicas.get(i).getUpdater().getStateViewArray());
+            }
+            state.divi(count);
+        }
+
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(params);
+            if (state != null) replica.getUpdater().getStateViewArray().assign(state);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
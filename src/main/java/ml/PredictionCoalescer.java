@@ -0,0 +1,122 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces concurrent single-row predictions of a model into one batched prediction.
+ *
+ * The first caller that finds no open batch becomes its leader, it waits up to the window for other callers to add
+ * their rows, or until the batch is full, then closes the batch, predicts all rows at once and hands every caller
+ * its result. A caller waits at most the window plus the time of one batched prediction.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class PredictionCoalescer<ROW> {
+    private final MLModel<ROW> model;
+    private final long windowNanos;
+    private final int maxRows;
+    private final Object lock = new Object();
+    private Batch<ROW> open;
+    private final LongAdder batches = new LongAdder();
+
+    PredictionCoalescer(MLModel<ROW> model, long windowMicros, int maxRows) {
+        this.model = model;
+        this.windowNanos = windowMicros * 1000;
+        this.maxRows = maxRows;
+    }
+
+    Object predict(MLModel.Snapshot snapshot, ROW row) {
+        Batch<ROW> batch;
+        int index;
+        boolean leader = false;
+        synchronized (lock) {
+            if (open == null || open.snapshot != snapshot) {
+                open = new Batch<>(snapshot, maxRows, Thread.currentThread());
+                leader = true;
+            }
+            batch = open;
+            index = batch.rows.size();
+            batch.rows.add(row);
+            if (batch.rows.size() == maxRows) {
+                open = null;
+                if (!leader) LockSupport.unpark(batch.leader);
+            }
+        }
+        if (leader) {
+            lead(batch);
+        } else {
+            batch.await();
+        }
+        return batch.result(index);
+    }
+
+    private void lead(Batch<ROW> batch) {
+        long deadline = System.nanoTime() + windowNanos;
+        while (true) {
+            synchronized (lock) {
+                if (open != batch) break; // full, or replaced by a batch for a newer snapshot
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    open = null;
+                    break;
+                }
+            }
+            LockSupport.parkNanos(this, deadline - System.nanoTime());
+        }
+        // the batch is closed, no more rows are added
+        try {
+            batch.results = model.doPredict(batch.snapshot, batch.rows);
+        } catch (Throwable t) {
+            batch.error = t;
+        }
+        batches.increment();
+        batch.done.countDown();
+    }
+
+    /**
+     * @return the number of batched predictions so far
+     */
+    long batches() {
+        return batches.sum();
+    }
+
+    private static class Batch<ROW> {
+        final MLModel.Snapshot snapshot;
+        final List<ROW> rows;
+        final Thread leader;
+        final CountDownLatch done = new CountDownLatch(1);
+        Object[] results;
+        Throwable error;
+
+        Batch(MLModel.Snapshot snapshot, int maxRows, Thread leader) {
+            this.snapshot = snapshot;
+            this.rows = new ArrayList<>(maxRows);
+            this.leader = leader;
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; // the leader predicts the row anyway
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        Object result(int index) {
+            if (error instanceof RuntimeException) throw (RuntimeException) error;
+            if (error instanceof Error) throw (Error) error;
+            if (error != null) throw new IllegalStateException(error);
+            return results[index];
+        }
+    }
+}
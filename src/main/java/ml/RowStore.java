@@ -0,0 +1,625 @@
+package ml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Columnar store for the training rows of a model.
+ *
+ * Every column is kept in fixed-size primitive chunks, {@code double[]} for float/order columns and
+ * dictionary-encoded {@code int[]} codes for class columns. Growing only appends a new chunk,
+ * the existing data is never copied.
+ *
+ * With a spill threshold, rows past the threshold are appended to a memory-mapped {@link SpillFile}
+ * instead, so the heap used for training data stays bounded.
+ *
+ * Rows can be added from several threads at once. Every add locks one of a set of stripes and writes the encoded
+ * row into the stripe's buffer, full buffers are merged into the columns in one go. {@link #size()} merges the
+ * remaining buffers first. Merged rows never change, so rows below a size read earlier can be read while
+ * other threads keep adding. Batches are checked and encoded as a whole in a {@link Staged} buffer first and then
+ * appended in one step, so a batch is either added completely or not at all.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class RowStore {
+    static final int CHUNK_SHIFT = 14;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    static final int STRIPE_ROWS = 1024;
+
+    private final String[] names;
+    private final MLModel.DataType[] types;
+    private final Map<String, Integer> offsets;
+    private final Column[] columns;
+    private final Stripe[] stripes;
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final long spillThreshold;
+    private final File spillDirectory;
+    private SpillFile spill;
+    private int memoryRows;
+    private volatile int size;
+    private final AtomicLong heapBytes = new AtomicLong();
+    private final LongConsumer allocations;
+    private final long rowBytes;
+
+    RowStore(Map<String, MLModel.DataType> types, Map<String, Integer> offsets) {
+        this(types, offsets, -1, null, bytes -> {});
+    }
+
+    /**
+     * @param spillThreshold number of rows kept on the heap before spilling to disk, negative to never spill
+     * @param spillDirectory directory for the spill file, defaults to {@code java.io.tmpdir}
+     * @param allocations is told about every chunk, dictionary entry and buffer the store allocates, and the bytes it
+     *                    releases on {@link #close()}
+     */
+    RowStore(Map<String, MLModel.DataType> types, Map<String, Integer> offsets, long spillThreshold, String spillDirectory, LongConsumer allocations) {
+        this.allocations = allocations;
+        int width = offsets.size();
+        this.names = new String[width];
+        this.types = new MLModel.DataType[width];
+        this.offsets = offsets;
+        this.columns = new Column[width];
+        this.stripes = new Stripe[stripeCount(Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(width, this::allocated);
+        }
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = new File(spillDirectory == null ? System.getProperty("java.io.tmpdir") : spillDirectory);
+        offsets.forEach((name, offset) -> {
+            MLModel.DataType type = types.get(name);
+            this.names[offset] = name;
+            this.types[offset] = type;
+            this.columns[offset] = type == MLModel.DataType._class ? new ClassColumn(this::allocated) : new NumberColumn(this::allocated);
+        });
+        long rowBytes = 0;
+        for (MLModel.DataType type : this.types) {
+            rowBytes += type == MLModel.DataType._class ? 4 : 8;
+        }
+        this.rowBytes = rowBytes;
+    }
+
+    private void allocated(long bytes) {
+        heapBytes.addAndGet(bytes);
+        allocations.accept(bytes);
+    }
+
+    private static int stripeCount(int processors) {
+        int count = 1;
+        while (count < processors) count <<= 1;
+        return count;
+    }
+
+    /**
+     * @return the number of rows, rows that are still buffered in a stripe are merged first
+     */
+    public int size() {
+        if (buffered.get() > 0) flush();
+        return size;
+    }
+
+    /**
+     * @return the number of rows including the ones still buffered in a stripe, without merging them,
+     * only exact when no adds run concurrently
+     */
+    int count() {
+        return size + buffered.get();
+    }
+
+    /**
+     * @return estimated heap used by the chunks, dictionaries and stripe buffers, spilled rows are not on the heap
+     */
+    long heapBytes() {
+        return heapBytes.get();
+    }
+
+    /**
+     * @return the heap a row needs in the columns, the bound for an add before its chunk is allocated
+     */
+    long rowBytes() {
+        return rowBytes;
+    }
+
+    /**
+     * @return the number of rows that were merged into the columns already
+     */
+    int merged() {
+        return size;
+    }
+
+    /**
+     * @return the number of merged rows that were spilled to disk, without merging the buffered rows
+     */
+    public int spilled() {
+        int size = this.size; // read first, it is written after memoryRows
+        return Math.max(0, size - memoryRows);
+    }
+
+    public int width() {
+        return columns.length;
+    }
+
+    public String name(int column) {
+        return names[column];
+    }
+
+    public MLModel.DataType type(int column) {
+        return types[column];
+    }
+
+    public Dictionary dictionary(int column) {
+        Column col = columns[column];
+        if (col instanceof ClassColumn) return ((ClassColumn) col).dictionary;
+        throw new IllegalArgumentException("Column " + names[column] + " is not a class column");
+    }
+
+    public void add(Map<String, Object> inputs, Object output, int outputOffset) {
+        checkValues(inputs, output, outputOffset);
+        Stripe stripe = lockStripe();
+        try {
+            int base = stripe.reserve();
+            for (Map.Entry<String, Object> entry : inputs.entrySet()) {
+                int offset = offsets.get(entry.getKey());
+                stripe.buffer[base + offset] = columns[offset].encode(entry.getValue());
+            }
+            stripe.buffer[base + outputOffset] = columns[outputOffset].encode(output);
+            commit(stripe);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void checkValues(Map<String, Object> inputs, Object output, int outputOffset) {
+        if (inputs.size() + 1 != columns.length) {
+            throw new IllegalArgumentException(String.format("Expected %d inputs but got %d: %s", columns.length - 1, inputs.size(), inputs.keySet()));
+        }
+        for (String key : inputs.keySet()) {
+            Integer offset = offsets.get(key);
+            if (offset == null || offset == outputOffset) throw new IllegalArgumentException("Unknown input " + key);
+        }
+        if (output == null) throw new IllegalArgumentException("Missing output for training row");
+    }
+
+    /**
+     * Appends a row whose values, including the output, are already arranged by column offset.
+     */
+    public void add(Object[] values) {
+        checkValues(values);
+        Stripe stripe = lockStripe();
+        try {
+            int base = stripe.reserve();
+            for (int i = 0; i < values.length; i++) {
+                stripe.buffer[base + i] = columns[i].encode(values[i]);
+            }
+            commit(stripe);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private void checkValues(Object[] values) {
+        if (values.length != columns.length) {
+            throw new IllegalArgumentException(String.format("Expected %d values but got %d", columns.length, values.length));
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) throw new IllegalArgumentException("Missing value for " + names[i]);
+        }
+    }
+
+    /**
+     * Appends one row per list index, the inputs are given as one list of values per column.
+     * Either all rows are added or, if a value is invalid, none.
+     */
+    public int addColumns(Map<String, List<Object>> inputs, List<Object> outputs, int outputOffset) {
+        if (inputs.size() + 1 != columns.length) {
+            throw new IllegalArgumentException(String.format("Expected %d input columns but got %d: %s", columns.length - 1, inputs.size(), inputs.keySet()));
+        }
+        int count = outputs.size();
+        Iterator<?>[] values = new Iterator<?>[columns.length];
+        for (Map.Entry<String, List<Object>> entry : inputs.entrySet()) {
+            Integer offset = offsets.get(entry.getKey());
+            if (offset == null || offset == outputOffset) throw new IllegalArgumentException("Unknown input " + entry.getKey());
+            if (entry.getValue().size() != count) {
+                throw new IllegalArgumentException(String.format("Column %s has %d values but there are %d outputs", entry.getKey(), entry.getValue().size(), count));
+            }
+            values[offset] = entry.getValue().iterator();
+        }
+        for (Object output : outputs) {
+            if (output == null) throw new IllegalArgumentException("Missing output for training row");
+        }
+        values[outputOffset] = outputs.iterator();
+        Staged staged = new Staged(count);
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < count; i++) {
+            for (int col = 0; col < columns.length; col++) {
+                row[col] = values[col].next();
+            }
+            staged.add(row);
+        }
+        return append(staged);
+    }
+
+    /**
+     * Appends the staged rows in one step, the values of class columns are only added to their dictionaries now.
+     *
+     * @return the number of rows appended
+     */
+    int append(Staged staged) {
+        int width = columns.length;
+        int count = staged.rows;
+        double[] encoded = staged.values;
+        for (int i = 0; i < count * width; i++) {
+            Object value = staged.classes[i];
+            if (value != null) encoded[i] = columns[i % width].encode(value);
+        }
+        synchronized (this) {
+            for (int row = 0; row < count; row++) {
+                append(encoded, row * width);
+            }
+            size += count;
+        }
+        return count;
+    }
+
+    /**
+     * Rows that are checked and encoded before any of them is added by {@link #append(Staged)}, so that an invalid value
+     * in a batch leaves the store unchanged. Numbers are parsed while staging, class values are kept as they are
+     * until the batch is appended.
+     */
+    class Staged {
+        private double[] values;
+        private Object[] classes;
+        private int rows;
+
+        Staged(int capacity) {
+            int length = Math.max(1, capacity) * columns.length;
+            this.values = new double[length];
+            this.classes = new Object[length];
+        }
+
+        void add(Map<String, Object> inputs, Object output, int outputOffset) {
+            checkValues(inputs, output, outputOffset);
+            int base = reserve();
+            for (Map.Entry<String, Object> entry : inputs.entrySet()) {
+                set(base, offsets.get(entry.getKey()), entry.getValue());
+            }
+            set(base, outputOffset, output);
+            rows++;
+        }
+
+        /**
+         * @param row values arranged by column offset, including the output, the array can be reused afterwards
+         */
+        void add(Object[] row) {
+            checkValues(row);
+            int base = reserve();
+            for (int col = 0; col < row.length; col++) {
+                set(base, col, row[col]);
+            }
+            rows++;
+        }
+
+        int rows() {
+            return rows;
+        }
+
+        private int reserve() {
+            int base = rows * columns.length;
+            if (base + columns.length > values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+                classes = Arrays.copyOf(classes, classes.length * 2);
+            }
+            return base;
+        }
+
+        private void set(int base, int col, Object value) {
+            if (types[col] == MLModel.DataType._class) {
+                classes[base + col] = value;
+            } else {
+                values[base + col] = columns[col].encode(value);
+            }
+        }
+    }
+
+    /**
+     * Locks the first uncontended stripe, starting at the one of the current thread.
+     */
+    private Stripe lockStripe() {
+        int start = (int) Thread.currentThread().getId();
+        int mask = stripes.length - 1;
+        Stripe stripe = null;
+        for (int i = 0; i < stripes.length && stripe == null; i++) {
+            Stripe candidate = stripes[(start + i) & mask];
+            if (candidate.lock.tryLock()) stripe = candidate;
+        }
+        if (stripe == null) {
+            stripe = stripes[start & mask];
+            stripe.lock.lock();
+        }
+        return stripe;
+    }
+
+    private void commit(Stripe stripe) {
+        stripe.rows++;
+        buffered.incrementAndGet();
+        if (stripe.rows == STRIPE_ROWS) merge(stripe);
+    }
+
+    /**
+     * Appends the buffered rows of a stripe to the columns, the caller holds the lock of the stripe.
+     */
+    private void merge(Stripe stripe) {
+        if (stripe.rows == 0) return;
+        synchronized (this) {
+            int width = columns.length;
+            for (int row = 0; row < stripe.rows; row++) {
+                append(stripe.buffer, row * width);
+            }
+            size += stripe.rows;
+        }
+        buffered.addAndGet(-stripe.rows);
+        stripe.rows = 0;
+    }
+
+    private void flush() {
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                merge(stripe);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    private void append(double[] data, int offset) {
+        if (spillThreshold < 0 || memoryRows < spillThreshold) {
+            for (int col = 0; col < columns.length; col++) {
+                columns[col].set(memoryRows, data[offset + col]);
+            }
+            memoryRows++;
+        } else {
+            spillFile().append(data, offset);
+        }
+    }
+
+    private SpillFile spillFile() {
+        if (spill == null) {
+            try {
+                spill = new SpillFile(spillDirectory, columns.length);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create spill file in " + spillDirectory, e);
+            }
+        }
+        return spill;
+    }
+
+    public double getDouble(int row, int column) {
+        checkRow(row);
+        return row < memoryRows ? columns[column].getDouble(row) : spill.get(row - memoryRows, column);
+    }
+
+    public int getCode(int row, int column) {
+        return (int) getDouble(row, column);
+    }
+
+    public String getString(int row, int column) {
+        return columns[column].toString(getDouble(row, column));
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+    }
+
+    /**
+     * Releases the spill file and reports the heap of the store as released, the store must not be used afterwards.
+     */
+    public synchronized void close() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+        allocated(-heapBytes.get());
+    }
+
+    static double toDouble(Object value) {
+        if (value instanceof Number) return ((Number) value).doubleValue();
+        return Double.parseDouble(value.toString().trim());
+    }
+
+    /**
+     * Canonical string form of a numeric value, integral values are rendered without fraction
+     * so that ordinal values look the same in training and prediction.
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * Codes of the values of a class column, lookups are lock-free, only new values take the lock.
+     */
+    static class Dictionary {
+        private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+        private final LongConsumer allocated;
+        private volatile String[] values = new String[8];
+        private volatile int size;
+
+        Dictionary(LongConsumer allocated) {
+            this.allocated = allocated;
+            allocated.accept(values.length * 8L);
+        }
+
+        int encode(String value) {
+            Integer code = codes.get(value);
+            return code != null ? code : add(value);
+        }
+
+        private synchronized int add(String value) {
+            Integer code = codes.get(value);
+            if (code != null) return code;
+            long bytes = 96 + value.length() * 2L; // rough estimate of the string and its map entry
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                bytes += size * 8L;
+            }
+            values[size] = value;
+            codes.put(value, size);
+            allocated.accept(bytes);
+            return size++;
+        }
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        String value(int code) {
+            return values[code];
+        }
+
+        int size() {
+            return size;
+        }
+
+        List<String> values() {
+            int size = this.size;
+            return Collections.unmodifiableList(Arrays.asList(values).subList(0, size));
+        }
+
+        @Override
+        public String toString() {
+            return values().toString();
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final int width;
+        private final LongConsumer allocated;
+        double[] buffer;
+        int rows;
+
+        Stripe(int width, LongConsumer allocated) {
+            this.width = width;
+            this.allocated = allocated;
+            this.buffer = new double[width * 16];
+            allocated.accept(buffer.length * 8L);
+        }
+
+        /**
+         * @return the offset of the next row in the buffer
+         */
+        int reserve() {
+            int base = rows * width;
+            if (base + width > buffer.length) {
+                int length = Math.min(buffer.length * 2, STRIPE_ROWS * width);
+                allocated.accept((length - buffer.length) * 8L);
+                buffer = Arrays.copyOf(buffer, length);
+            }
+            return base;
+        }
+    }
+
+    private static abstract class Column {
+        final LongConsumer allocated;
+
+        Column(LongConsumer allocated) {
+            this.allocated = allocated;
+            allocated.accept(16 * 8L);
+        }
+
+        abstract double encode(Object value);
+
+        abstract void set(int row, double value);
+
+        abstract double getDouble(int row);
+
+        abstract String toString(double value);
+    }
+
+    private static class NumberColumn extends Column {
+        private double[][] chunks = new double[16][];
+
+        NumberColumn(LongConsumer allocated) {
+            super(allocated);
+        }
+
+        @Override
+        double encode(Object value) {
+            return toDouble(value);
+        }
+
+        @Override
+        void set(int row, double value) {
+            int chunk = row >>> CHUNK_SHIFT;
+            if (chunk == chunks.length) {
+                allocated.accept(chunks.length * 8L);
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            if (chunks[chunk] == null) {
+                allocated.accept(CHUNK_SIZE * 8L);
+                chunks[chunk] = new double[CHUNK_SIZE];
+            }
+            chunks[chunk][row & CHUNK_MASK] = value;
+        }
+
+        @Override
+        double getDouble(int row) {
+            return chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        @Override
+        String toString(double value) {
+            return format(value);
+        }
+    }
+
+    private static class ClassColumn extends Column {
+        private final Dictionary dictionary;
+        private int[][] chunks = new int[16][];
+
+        ClassColumn(LongConsumer allocated) {
+            super(allocated);
+            this.dictionary = new Dictionary(allocated);
+        }
+
+        @Override
+        double encode(Object value) {
+            return dictionary.encode(value.toString());
+        }
+
+        @Override
+        void set(int row, double value) {
+            int chunk = row >>> CHUNK_SHIFT;
+            if (chunk == chunks.length) {
+                allocated.accept(chunks.length * 8L);
+                chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            }
+            if (chunks[chunk] == null) {
+                allocated.accept(CHUNK_SIZE * 4L);
+                chunks[chunk] = new int[CHUNK_SIZE];
+            }
+            chunks[chunk][row & CHUNK_MASK] = (int) value;
+        }
+
+        @Override
+        double getDouble(int row) {
+            return chunks[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        @Override
+        String toString(double value) {
+            return dictionary.value((int) value);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package ml;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Mini-batch iterator over a range of (permuted) row indices of a {@link RowStore}.
+ * Only one batch is materialized as INDArrays at a time, the range is reshuffled on every reset.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class RowStoreDataSetIterator implements DataSetIterator {
+    private final RowStore rows;
+    private final int[] indices;
+    private final int from, to;
+    private final int batchSize;
+    private final int numInputs;
+    private final int outputOffset;
+    private final int numClasses;
+    private final Random random;
+    private final boolean shuffle;
+    private DataSetPreProcessor preProcessor;
+    private int cursor;
+
+    RowStoreDataSetIterator(RowStore rows, int[] indices, int from, int to, int batchSize, int numInputs, int outputOffset, int numClasses, long seed, boolean shuffle) {
+        this.rows = rows;
+        this.indices = indices;
+        this.from = from;
+        this.to = to;
+        this.batchSize = batchSize;
+        this.numInputs = numInputs;
+        this.outputOffset = outputOffset;
+        this.numClasses = numClasses;
+        this.random = new Random(seed);
+        this.shuffle = shuffle;
+        reset();
+    }
+
+    /**
+     * Random permutation of all row indices, the first part is used for training and the rest for testing.
+     */
+    static int[] permutation(int size, long seed) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) indices[i] = i;
+        shuffle(indices, 0, size, new Random(seed));
+        return indices;
+    }
+
+    private static void shuffle(int[] indices, int from, int to, Random random) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + random.nextInt(i - from + 1);
+            int tmp = indices[i];
+            indices[i] = indices[j];
+            indices[j] = tmp;
+        }
+    }
+
+    @Override
+    public DataSet next(int num) {
+        if (!hasNext()) throw new NoSuchElementException();
+        int count = Math.min(num, to - cursor);
+        double[] features = new double[count * numInputs];
+        double[] labels = new double[count * numClasses];
+        for (int i = 0; i < count; i++) {
+            int row = indices[cursor + i];
+            for (int col = 0; col < numInputs; col++) {
+                features[i * numInputs + col] = rows.getDouble(row, col);
+            }
+            labels[i * numClasses + rows.getCode(row, outputOffset)] = 1d;
+        }
+        cursor += count;
+        DataSet ds = new DataSet(Nd4j.create(features, new int[]{count, numInputs}), Nd4j.create(labels, new int[]{count, numClasses}));
+        if (preProcessor != null) preProcessor.preProcess(ds);
+        return ds;
+    }
+
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < to;
+    }
+
+    @Override
+    public void reset() {
+        if (shuffle) shuffle(indices, from, to, random);
+        cursor = from;
+    }
+
+    @Override
+    public int totalExamples() {
+        return to - from;
+    }
+
+    @Override
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    @Override
+    public int inputColumns() {
+        return numInputs;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return numClasses;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return false;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor - from;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return rows.dictionary(outputOffset).values();
+    }
+}
@@ -0,0 +1,86 @@
+package ml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only file of fixed-width rows, every value stored as an 8 byte double.
+ * The file is mapped in segments of whole rows, so appends and reads never go through the heap.
+ * Rows that were appended before can be read while another thread appends.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class SpillFile {
+    private static final long SEGMENT_BYTES = 64L << 20;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int width;
+    private final int rowBytes;
+    private final int segmentRows;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private int size;
+
+    SpillFile(File directory, int width) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create directory " + directory);
+        this.file = File.createTempFile("ml-rows-", ".spill", directory);
+        this.file.deleteOnExit();
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.width = width;
+        this.rowBytes = width * Double.BYTES;
+        this.segmentRows = (int) Math.max(1, SEGMENT_BYTES / rowBytes);
+    }
+
+    void append(double[] row) {
+        append(row, 0);
+    }
+
+    void append(double[] data, int offset) {
+        int segment = size / segmentRows;
+        if (segment == segments.size()) {
+            try {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * segmentRows * rowBytes, (long) segmentRows * rowBytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not extend spill file " + file, e);
+            }
+        }
+        MappedByteBuffer buffer = segments.get(segment);
+        int position = (size % segmentRows) * rowBytes;
+        for (int col = 0; col < width; col++) {
+            buffer.putDouble(position + col * Double.BYTES, data[offset + col]);
+        }
+        size++;
+    }
+
+    double get(int row, int column) {
+        return segments.get(row / segmentRows).getDouble((row % segmentRows) * rowBytes + column * Double.BYTES);
+    }
+
+    int size() {
+        return size;
+    }
+
+    File file() {
+        return file;
+    }
+
+    void close() {
+        segments.clear();
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException e) {
+            // ignore, the file is deleted anyway
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,114 @@
+package ml;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * Limits the CPU used for training across all models, so trainings don't starve the queries of the database.
+ *
+ * Every training, also the candidates of {@link Tuning}, needs a permit, further ones wait for a running one to finish.
+ * The thread counts cap Encog's propagation and fold threads and ND4J's OpenMP and BLAS threads,
+ * {@code 0} keeps the defaults of the frameworks, which use all processors. Pools that trainings start themselves,
+ * the candidates of a tuning and the workers of DL4J's parameter averaging, are clamped to the same limits.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class TrainingGovernor {
+    private static final long CHECK_MILLIS = 100;
+
+    static volatile int maxTrainings = 0;
+    static volatile int encogThreads = 0;
+    static volatile int nd4jThreads = 0;
+
+    private static volatile Semaphore permits;
+    private static final AtomicInteger waiting = new AtomicInteger();
+    private static final Set<Running> running = ConcurrentHashMap.newKeySet();
+
+    static synchronized void configure(int maxTrainings, int encogThreads, int nd4jThreads) {
+        TrainingGovernor.maxTrainings = maxTrainings;
+        TrainingGovernor.encogThreads = encogThreads;
+        TrainingGovernor.nd4jThreads = nd4jThreads;
+        // trainings that hold a permit of the previous semaphore release it there
+        permits = maxTrainings > 0 ? new Semaphore(maxTrainings, true) : null;
+    }
+
+    /**
+     * Runs {@link MLModel#doTrain} once a permit is available, a training that is cancelled while waiting doesn't start.
+     */
+    static MLModel.Snapshot train(MLModel<?> model, MLModel.Training training) {
+        Semaphore permits = TrainingGovernor.permits;
+        if (permits != null) {
+            waiting.incrementAndGet();
+            try {
+                while (!permits.tryAcquire(CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                    training.checkCancelled();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting to train model " + model.name, e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        Running current = new Running(model.name);
+        running.add(current);
+        try {
+            training.started();
+            return model.doTrain(training);
+        } finally {
+            running.remove(current);
+            if (permits != null) permits.release();
+        }
+    }
+
+    /**
+     * @return the number of folds to train at once, at most {@link #encogThreads}
+     */
+    static int encogParallelism(int parallelism) {
+        int threads = encogThreads;
+        return threads > 0 ? Math.min(parallelism, threads) : parallelism;
+    }
+
+    /**
+     * @return the number of DL4J workers that train replicas at once, at most {@link #nd4jThreads}
+     */
+    static int nd4jWorkers(int workers) {
+        int threads = nd4jThreads;
+        return threads > 0 ? Math.min(workers, threads) : workers;
+    }
+
+    /**
+     * @return the number of candidates to train at once, at most {@link #maxTrainings} as further ones would only wait for a permit
+     */
+    static int tuningParallelism(int parallelism) {
+        int trainings = maxTrainings;
+        return trainings > 0 ? Math.min(parallelism, trainings) : parallelism;
+    }
+
+    static ML.GovernorResult asResult() {
+        List<Map<String, Object>> trainings = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Running training : running) {
+            trainings.add(map("model", training.model, "elapsed", now - training.started));
+        }
+        return new ML.GovernorResult(maxTrainings, trainings.size(), waiting.get(), encogThreads, nd4jThreads, trainings);
+    }
+
+    private static class Running {
+        final String model;
+        final long started = System.currentTimeMillis();
+
+        Running(String model) {
+            this.model = model;
+        }
+    }
+}
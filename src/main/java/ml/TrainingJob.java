@@ -0,0 +1,66 @@
+package ml;
+
+/**
+ * Background training of one model, progress and score are reported by the model while it trains.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class TrainingJob implements Runnable, MLModel.TrainingListener {
+    enum Status {queued, running, done, failed}
+
+    final long id;
+    final MLModel<?> model;
+    private final long submitted = System.currentTimeMillis();
+    private volatile long started, finished;
+    private volatile Status status = Status.queued;
+    private volatile double progress;
+    private volatile Double score;
+    private volatile String error;
+
+    TrainingJob(long id, MLModel<?> model) {
+        this.id = id;
+        this.model = model;
+    }
+
+    @Override
+    public void run() {
+        started = System.currentTimeMillis();
+        status = Status.running;
+        try {
+            model.train(this, null);
+            progress = 1d;
+            status = Status.done;
+        } catch (Throwable t) {
+            error = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+            status = Status.failed;
+        } finally {
+            finished = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void progress(double progress, Double score) {
+        this.progress = progress;
+        if (score != null) this.score = score;
+    }
+
+    void fail(String error) {
+        this.error = error;
+        status = Status.failed;
+        finished = System.currentTimeMillis();
+    }
+
+    boolean isActive() {
+        return status == Status.queued || status == Status.running;
+    }
+
+    long finished() {
+        return finished;
+    }
+
+    ML.JobResult asResult() {
+        long end = finished == 0 ? System.currentTimeMillis() : finished;
+        return new ML.JobResult(id, model.name, status.name(), progress, started == 0 ? 0 : end - started, started == 0 ? end - submitted : started - submitted, score, error);
+    }
+}
@@ -0,0 +1,86 @@
+package ml;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Runs {@link TrainingJob}s on a bounded executor, separate from the query threads.
+ * Finished jobs are kept for inspection until {@link #MAX_FINISHED} newer ones finished.
+ * The executor lives from {@link #start} to {@link #stop}, which {@link MLExtensionFactory} calls with the database.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class TrainingJobs {
+    static final int MAX_FINISHED = 100;
+
+    private static final AtomicLong ids = new AtomicLong();
+    private static final ConcurrentHashMap<Long, TrainingJob> jobs = new ConcurrentHashMap<>();
+    private static ThreadPoolExecutor executor;
+
+    /**
+     * Queues the training of the model, an already queued or running job of the model is returned instead.
+     */
+    static synchronized TrainingJob submit(MLModel<?> model) {
+        for (TrainingJob job : jobs.values()) {
+            if (job.model == model && job.isActive()) return job;
+        }
+        if (model.state != MLModel.State.training && model.state != MLModel.State.ready) {
+            throw new IllegalArgumentException(String.format("Model %s has no training data, state is %s", model.name, model.state));
+        }
+        if (executor == null) throw new IllegalStateException("Training jobs are stopped, the ml extension isn't running");
+        TrainingJob job = new TrainingJob(ids.incrementAndGet(), model);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            throw new IllegalArgumentException(String.format("Too many training jobs, %d are queued already", executor.getQueue().size()));
+        }
+        jobs.put(job.id, job);
+        prune();
+        return job;
+    }
+
+    static TrainingJob get(long id) {
+        TrainingJob job = jobs.get(id);
+        if (job == null) throw new IllegalArgumentException("No training job " + id);
+        return job;
+    }
+
+    static List<TrainingJob> list() {
+        return jobs.values().stream().sorted(Comparator.comparingLong(job -> job.id)).collect(Collectors.toList());
+    }
+
+    static synchronized void start(int threads, int queueSize) {
+        if (executor != null) stop();
+        AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "ml-training-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Interrupts the running jobs and fails the queued ones, later submits fail until the next {@link #start}.
+     */
+    static synchronized void stop() {
+        if (executor == null) return;
+        for (Runnable dropped : executor.shutdownNow()) {
+            ((TrainingJob) dropped).fail("Stopped before it ran");
+        }
+        executor = null;
+    }
+
+    private static void prune() {
+        List<TrainingJob> finished = jobs.values().stream().filter(job -> !job.isActive())
+                .sorted(Comparator.comparingLong(TrainingJob::finished)).collect(Collectors.toList());
+        for (int i = 0; i < finished.size() - MAX_FINISHED; i++) {
+            jobs.remove(finished.get(i).id);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ml;
+
+import org.neo4j.logging.Level;
+import org.neo4j.logging.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded history of the epochs, folds and validations of the trainings of one model, beyond {@link #CAPACITY}
+ * entries the oldest are overwritten. Every entry is also written to {@link #log} at {@link #level}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class TrainingLog {
+    static final int CAPACITY = 1000;
+
+    /**
+     * User log of the database, set by {@link MLExtensionFactory}, entries are only kept in memory without it.
+     */
+    static volatile Log log;
+    static volatile Level level = Level.DEBUG;
+
+    private final String model;
+    private final Entry[] entries = new Entry[CAPACITY];
+    private long written;
+
+    TrainingLog(String model) {
+        this.model = model;
+    }
+
+    static class Entry {
+        final long time = System.currentTimeMillis();
+        final long training;
+        final String phase;
+        final long step;
+        final Double score;
+        final double millis;
+        final double samplesPerSecond;
+        final Map<String, Object> metrics;
+
+        Entry(long training, String phase, long step, Double score, double millis, double samplesPerSecond, Map<String, Object> metrics) {
+            this.training = training;
+            this.phase = phase;
+            this.step = step;
+            this.score = score;
+            this.millis = millis;
+            this.samplesPerSecond = samplesPerSecond;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * @param phase {@code epoch}, {@code fold} or {@code validation}
+     * @param step number of the epoch or fold in the training, starting at 1
+     * @param samples number of rows processed since {@code start}
+     * @param start {@link System#nanoTime()} when the step started
+     * @param metrics validation metrics, {@code null} for epochs and folds
+     */
+    void record(MLModel.Training training, String phase, long step, Double score, long samples, long start, Map<String, Object> metrics) {
+        long nanos = Math.max(1, System.nanoTime() - start);
+        Entry entry = new Entry(training.id, phase, step, score, nanos / 1e6, samples * 1e9 / nanos, metrics);
+        synchronized (this) {
+            entries[(int) (written++ % CAPACITY)] = entry;
+        }
+        write(entry);
+    }
+
+    private void write(Entry entry) {
+        Log log = TrainingLog.log;
+        Level level = TrainingLog.level;
+        if (log == null || level == Level.NONE) return;
+        String format = "Model %s training %d %s %d: score %s in %.1f ms, %.0f samples/s%s";
+        Object[] args = {model, entry.training, entry.phase, entry.step, entry.score, entry.millis, entry.samplesPerSecond,
+                entry.metrics == null ? "" : " " + entry.metrics};
+        switch (level) {
+            case DEBUG: log.debug(format, args); break;
+            case INFO: log.info(format, args); break;
+            case WARN: log.warn(format, args); break;
+            default: log.error(format, args);
+        }
+    }
+
+    /**
+     * @return the retained entries, oldest first
+     */
+    synchronized List<ML.TrainingLogResult> asResults() {
+        int count = (int) Math.min(written, CAPACITY);
+        List<ML.TrainingLogResult> results = new ArrayList<>(count);
+        for (long i = written - count; i < written; i++) {
+            Entry e = entries[(int) (i % CAPACITY)];
+            results.add(new ML.TrainingLogResult(model, e.training, e.time, e.phase, e.step, e.score, e.millis, e.samplesPerSecond, e.metrics));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,202 @@
+package ml;
+
+import org.neo4j.procedure.TerminationGuard;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Hyperparameter search over the training rows of a model.
+ *
+ * The candidates are the combinations of the values in the search space, with a budget a seeded random sample of them.
+ * They are trained concurrently from the same rows, each result is streamed as its candidate finishes and the candidate
+ * with the lowest validation error is promoted to be the model's trained state before the last result is streamed.
+ * Closing the stream before that cancels the remaining candidates and promotes none, as does a consumer that stops
+ * taking results, e.g. with a {@code LIMIT}.
+ *
+ * @author mh
+ * @since 17.10.26
+ */
+class Tuning {
+    /** Config that is fixed when the model is created, it can't differ between candidates. */
+    private static final Set<String> FIXED = new HashSet<>(Arrays.asList("framework", "spillThreshold", "spillDirectory"));
+    static final String METHOD = "method";
+
+    private final MLModel<?> model;
+    private final int size;
+    private final List<Map<String, Object>> candidates;
+    private final int parallelism;
+    private final BlockingQueue<ML.TuneResult> results = new LinkedBlockingQueue<>();
+    private final AtomicInteger remaining;
+    private final AtomicInteger consumed = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Queue<MLModel.Training> trainings = new ConcurrentLinkedQueue<>();
+    private final TerminationGuard guard;
+    private ExecutorService executor;
+    private MLModel.Snapshot best;
+    private Map<String, Object> bestParams;
+
+    private Tuning(MLModel<?> model, List<Map<String, Object>> candidates, int parallelism, TerminationGuard guard) {
+        this.model = model;
+        this.size = model.rows.size();
+        this.candidates = candidates;
+        this.parallelism = parallelism;
+        this.remaining = new AtomicInteger(candidates.size());
+        this.guard = guard;
+    }
+
+    /**
+     * @param searchSpace a list of values or a single value per config key, {@code method} selects the Encog method
+     * @param options {@code parallelism} (candidates trained at once, default number of processors) and
+     *                {@code budget} (maximum number of candidates, default all combinations)
+     * @param guard cancels the candidates when the transaction is terminated, {@code null} if there is none
+     * @return the results in the order the candidates finished, it blocks until the next one finished
+     */
+    static Stream<ML.TuneResult> tune(MLModel<?> model, Map<String, Object> searchSpace, Map<String, Object> options, TerminationGuard guard) {
+        if (model.state != MLModel.State.training && model.state != MLModel.State.ready) {
+            throw new IllegalArgumentException(String.format("Model %s has no training data, state is %s", model.name, model.state));
+        }
+        model.checkRowsAvailable(model.rows.count());
+        MLModel.Config config = new MLModel.Config(options);
+        List<Map<String, Object>> candidates = candidates(searchSpace);
+        int budget = ((Number) options.getOrDefault("budget", candidates.size())).intValue();
+        if (budget < 1) throw new IllegalArgumentException("Budget must be positive but was " + budget);
+        if (budget < candidates.size()) {
+            Collections.shuffle(candidates, new Random(model.config.seed.get()));
+            candidates = new ArrayList<>(candidates.subList(0, budget));
+        }
+        int parallelism = Math.max(1, TrainingGovernor.tuningParallelism(Math.min(config.parallelism.get(), candidates.size())));
+        // the model is not evicted before the last candidate finished, promoting the best one enters it again
+        model.enter();
+        try {
+            return new Tuning(model, candidates, parallelism, guard).start();
+        } catch (RuntimeException e) {
+            model.exit();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the cartesian product of the values of the search space
+     */
+    static List<Map<String, Object>> candidates(Map<String, Object> searchSpace) {
+        List<Map<String, Object>> candidates = new ArrayList<>();
+        candidates.add(new LinkedHashMap<>());
+        for (Map.Entry<String, Object> entry : searchSpace.entrySet()) {
+            String key = entry.getKey();
+            if (FIXED.contains(key)) throw new IllegalArgumentException("Can't tune " + key + ", it is fixed when the model is created");
+            List<?> values = entry.getValue() instanceof List ? (List<?>) entry.getValue() : Collections.singletonList(entry.getValue());
+            if (values.isEmpty()) throw new IllegalArgumentException("No values to tune " + key);
+            if (key.equals(METHOD)) {
+                for (Object value : values) MLModel.Method.valueOf(value.toString());
+            }
+            List<Map<String, Object>> next = new ArrayList<>(candidates.size() * values.size());
+            for (Map<String, Object> candidate : candidates) {
+                for (Object value : values) {
+                    Map<String, Object> params = new LinkedHashMap<>(candidate);
+                    params.put(key, value);
+                    next.add(params);
+                }
+            }
+            candidates = next;
+        }
+        return candidates;
+    }
+
+    private Stream<ML.TuneResult> start() {
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "ml-tuning-" + model.name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < candidates.size(); i++) {
+            long candidate = i;
+            Map<String, Object> params = candidates.get(i);
+            executor.execute(() -> results.add(fit(candidate, params)));
+        }
+        executor.shutdown();
+        return Stream.generate(this::next).limit(candidates.size()).onClose(this::close);
+    }
+
+    /**
+     * Promotes the best candidate when the last result is taken, the consumer saw all results by then.
+     */
+    private ML.TuneResult next() {
+        ML.TuneResult result;
+        try {
+            result = results.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while tuning model " + model.name, e);
+        }
+        if (consumed.incrementAndGet() < candidates.size() || !closed.compareAndSet(false, true)) return result;
+        try {
+            model.enter();
+            try {
+                promote();
+            } finally {
+                model.exit();
+            }
+        } catch (RuntimeException e) {
+            result = new ML.TuneResult(result.model, result.candidate, result.params, result.validationError, result.elapsed,
+                    "Could not promote the best candidate: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Cancels the candidates that are still queued or training if the stream is closed before its last result.
+     */
+    private void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        int dropped = executor.shutdownNow().size();
+        for (MLModel.Training training : trainings) {
+            training.cancel();
+        }
+        if (dropped > 0 && remaining.addAndGet(-dropped) == 0) model.exit();
+    }
+
+    private ML.TuneResult fit(long candidate, Map<String, Object> params) {
+        long start = System.currentTimeMillis();
+        Double validationError = null;
+        String error = null;
+        try {
+            MLModel.Config config = model.config.with(params);
+            // the candidates already use all threads, so the folds of a candidate are trained one after another
+            MLModel.Config fitConfig = parallelism > 1 && !params.containsKey("parallelism") ? config.with(Collections.singletonMap("parallelism", 1)) : config;
+            MLModel.Method method = params.containsKey(METHOD) ? MLModel.Method.valueOf(params.get(METHOD).toString()) : model.methodName;
+            MLModel.Training training = new MLModel.Training(size, fitConfig, method, null, guard);
+            trainings.add(training);
+            if (closed.get()) training.cancel();
+            MLModel.Snapshot snapshot = TrainingGovernor.train(model, training);
+            validationError = snapshot.validationError;
+            offer(snapshot, params);
+        } catch (Throwable t) {
+            error = t.getMessage() == null ? t.getClass().getSimpleName() : t.getMessage();
+        }
+        if (remaining.decrementAndGet() == 0) model.exit();
+        return new ML.TuneResult(model.name, candidate, params, validationError, System.currentTimeMillis() - start, error);
+    }
+
+    private synchronized void offer(MLModel.Snapshot snapshot, Map<String, Object> params) {
+        if (best == null || snapshot.validationError < best.validationError || Double.isNaN(best.validationError)) {
+            best = snapshot;
+            bestParams = params;
+        }
+    }
+
+    private synchronized void promote() {
+        if (best == null) return;
+        Map<String, Object> config = new HashMap<>(bestParams);
+        MLModel.Method method = config.containsKey(METHOD) ? MLModel.Method.valueOf(config.remove(METHOD).toString()) : model.methodName;
+        model.promote(best, model.config.with(config), method);
+    }
+}
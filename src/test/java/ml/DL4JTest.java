@@ -6,10 +6,18 @@ import org.junit.Test;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.neo4j.helpers.collection.MapUtil.map;
 import static org.neo4j.helpers.collection.MapUtil.stringMap;
 
@@ -49,4 +57,138 @@ public class DL4JTest {
         assertEquals(total,correct,5d);
     }
 
+    @Test
+    public void miniBatchesPredictLikeTheFullDataset() throws Exception {
+        ML ml = new ML();
+        String full = train(ml, "cl-lin-full", Collections.singletonMap("framework", "dl4j"));
+        String batched = train(ml, "cl-lin-batched", map("framework", "dl4j", "batchSize", 50));
+
+        URL evalData = getClass().getResource("/linear_data_eval.csv");
+        ReadCSV csv = new ReadCSV(evalData.openStream(), false, CSVFormat.DECIMAL_POINT);
+        int total = 0, correct = 0, same = 0;
+        while (csv.next()) {
+            Map<String, Object> inputs = map("val1", csv.get(1), "val2", csv.get(2));
+            Object expected = ml.predict(full, inputs).findAny().get().value;
+            Object predicted = ml.predict(batched, inputs).findAny().get().value;
+            total++;
+            if (csv.get(0).equals(predicted.toString())) correct++;
+            if (expected.equals(predicted)) same++;
+        }
+        csv.close();
+        ml.remove(full);
+        ml.remove(batched);
+        assertEquals(total, correct, 5d);
+        assertEquals(total, same, 5d);
+    }
+
+    @Test
+    public void predictBatchKeepsTheInputOrder() throws Exception {
+        ML ml = new ML();
+        String model = train(ml, "cl-lin-batch", Collections.singletonMap("framework", "dl4j"));
+
+        URL evalData = getClass().getResource("/linear_data_eval.csv");
+        ReadCSV csv = new ReadCSV(evalData.openStream(), false, CSVFormat.DECIMAL_POINT);
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        while (csv.next()) {
+            inputs.add(map("val1", csv.get(1), "val2", csv.get(2)));
+        }
+        csv.close();
+        List<Object> predicted = ml.predictBatch(model, inputs).map(r -> r.value).collect(Collectors.toList());
+        assertEquals(inputs.size(), predicted.size());
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEquals(inputs.get(i).toString(), ml.predict(model, inputs.get(i)).findAny().get().value, predicted.get(i));
+        }
+        ml.remove(model);
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        ML ml = new ML();
+        String model = train(ml, "cl-lin-saved", Collections.singletonMap("framework", "dl4j"));
+
+        URL evalData = getClass().getResource("/linear_data_eval.csv");
+        ReadCSV csv = new ReadCSV(evalData.openStream(), false, CSVFormat.DECIMAL_POINT);
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        while (csv.next()) {
+            inputs.add(map("val1", csv.get(1), "val2", csv.get(2)));
+        }
+        csv.close();
+        List<ML.PredictionResult> expected = ml.predictBatch(model, inputs).collect(Collectors.toList());
+
+        File file = File.createTempFile(model, ModelFile.EXTENSION);
+        ml.save(model, file.getPath());
+        ml.remove(model);
+        ml.load(file.getPath());
+        List<ML.PredictionResult> loaded = ml.predictBatch(model, inputs).collect(Collectors.toList());
+        assertEquals(expected.size(), loaded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).value, loaded.get(i).value);
+            assertEquals(expected.get(i).confidence, loaded.get(i).confidence, 1e-6);
+        }
+        file.delete();
+        ml.remove(model);
+    }
+
+    @Test
+    public void predictWithParameterAveraging() throws Exception {
+        ML ml = new ML();
+        for (Map<String, Object> config : asList(map("framework", "dl4j", "workers", 2),
+                map("framework", "dl4j", "workers", 2, "batchSize", 50, "averagingFrequency", 2))) {
+            String model = train(ml, "cl-lin-averaged", config);
+            URL evalData = getClass().getResource("/linear_data_eval.csv");
+            ReadCSV csv = new ReadCSV(evalData.openStream(), false, CSVFormat.DECIMAL_POINT);
+            int total = 0, correct = 0;
+            while (csv.next()) {
+                Object predicted = ml.predict(model, map("val1", csv.get(1), "val2", csv.get(2))).findAny().get().value;
+                total++;
+                if (csv.get(0).equals(predicted.toString())) correct++;
+            }
+            csv.close();
+            ml.remove(model);
+            assertEquals(config.toString(), total, correct, 5d);
+        }
+    }
+
+    @Test
+    public void predictCoalesced() throws Exception {
+        ML ml = new ML();
+        String model = ml.create("cl-lin-coalesced", stringMap("val1", "float", "val2", "float", "output", "class"), "output",
+                map("framework", "dl4j", "coalesceMicros", 2000, "coalesceRows", 16)).findAny().get().model;
+        URL trainData = getClass().getResource("/linear_data_train.csv");
+        ReadCSV csv = new ReadCSV(trainData.openStream(), false, CSVFormat.DECIMAL_POINT);
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        while (csv.next()) {
+            Map<String, Object> row = map("val1", csv.get(1), "val2", csv.get(2));
+            ml.add(model, row, csv.get(0));
+            if (inputs.size() < 400) inputs.add(row);
+        }
+        csv.close();
+        ml.train(model);
+        List<Object> expected = ml.predictBatch(model, inputs).map(r -> r.value).collect(Collectors.toList());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Object>> predicted = new ArrayList<>();
+        for (Map<String, Object> row : inputs) {
+            predicted.add(executor.submit(() -> ml.predict(model, row).findAny().get().value));
+        }
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEquals(expected.get(i), predicted.get(i).get());
+        }
+        executor.shutdown();
+        assertTrue(MLModel.from(model).coalescer.batches() < inputs.size());
+        ml.remove(model);
+    }
+
+    private String train(ML ml, String name, Map<String, Object> config) throws Exception {
+        String model = ml.create(name, stringMap("val1", "float", "val2", "float", "output", "class"), "output", config).findAny().get().model;
+        URL trainData = getClass().getResource("/linear_data_train.csv");
+        ReadCSV csv = new ReadCSV(trainData.openStream(), false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            ml.add(model, map("val1", csv.get(1), "val2", csv.get(2)), csv.get(0));
+        }
+        csv.close();
+        ml.train(model);
+        return model;
+    }
+
 }
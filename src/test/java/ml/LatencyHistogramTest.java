@@ -0,0 +1,36 @@
+package ml;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author mh
+ * @since 17.10.26
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValue() throws Exception {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " above bucket " + index, value <= LatencyHistogram.highestValue(index));
+            assertTrue(value + " below bucket " + index, index == 0 || value > LatencyHistogram.highestValue(index - 1));
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().percentile(99));
+        for (long value = 1; value <= 10_000; value++) {
+            histogram.record(value * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10_000, snapshot.total);
+        assertEquals(5_000_000d, snapshot.percentile(50), 5_000_000d / 16);
+        assertEquals(9_900_000d, snapshot.percentile(99), 9_900_000d / 16);
+        assertEquals(10_000_000d, snapshot.max(), 10_000_000d / 16);
+    }
+}
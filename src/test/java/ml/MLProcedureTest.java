@@ -6,16 +6,38 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.QueryExecutionException;
 import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.helpers.collection.Iterators;
 import org.neo4j.kernel.impl.proc.Procedures;
 import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.neo4j.helpers.collection.MapUtil.map;
 import static org.neo4j.helpers.collection.MapUtil.stringMap;
 
@@ -73,4 +95,613 @@ public class MLProcedureTest {
 
     }
 
+    @Test
+    public void addBatch() throws Exception {
+        Map<String, String> types = stringMap("sepal-length", "float", "sepal-width", "float", "petal-length", "float", "petal-width", "float", "iris", "class");
+        db.execute("CALL ml.create({model},{types},{output})", map("model", "iris-batch", "types", types, "output", "iris")).close();
+
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        List<Object> outputs = new ArrayList<>();
+        Map<String, List<Object>> columns = new HashMap<>();
+        for (String column : asList("sepal-length", "sepal-width", "petal-length", "petal-width")) {
+            columns.put(column, new ArrayList<>());
+        }
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            inputs.add(map("sepal-length", csv.get(0), "sepal-width", csv.get(1), "petal-length", csv.get(2), "petal-width", csv.get(3)));
+            columns.get("sepal-length").add(Double.parseDouble(csv.get(0)));
+            columns.get("sepal-width").add(Double.parseDouble(csv.get(1)));
+            columns.get("petal-length").add(Double.parseDouble(csv.get(2)));
+            columns.get("petal-width").add(Double.parseDouble(csv.get(3)));
+            outputs.add(csv.get(4));
+        }
+        csv.close();
+
+        Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.addBatch('iris-batch',{inputs},{outputs})", map("inputs", inputs, "outputs", outputs)).columnAs("info").next();
+        assertEquals(150L, info.get("added"));
+        info = (Map<String, Object>) db.execute("CALL ml.addColumns('iris-batch',{columns},{outputs})", map("columns", columns, "outputs", outputs)).columnAs("info").next();
+        assertEquals(150L, info.get("added"));
+        assertEquals(300L, info.get("trainingSets"));
+
+        Object predicted = db.execute("CALL ml.predict('iris-batch',{inputs})", map("inputs", inputs.get(0))).columnAs("value").next();
+        assertEquals(outputs.get(0), predicted);
+
+        List<Object> predictions = Iterators.asList(db.execute("CALL ml.predictBatch('iris-batch',{inputs})", map("inputs", inputs)).columnAs("value"));
+        assertEquals(outputs.size(), predictions.size());
+        int correct = 0;
+        for (int i = 0; i < outputs.size(); i++) {
+            if (outputs.get(i).equals(predictions.get(i))) correct++;
+        }
+        assertEquals(outputs.size(), correct, 3d);
+        db.execute("CALL ml.remove('iris-batch')").close();
+    }
+
+    @Test
+    public void rejectBatchWithBadLastRow() throws Exception {
+        db.execute("CALL ml.create('partial',{types},'y')", map("types", stringMap("x", "float", "y", "class"))).close();
+        addLinearRows("partial");
+        List<Map<String, Object>> inputs = new ArrayList<>(asList(map("x", 1.0), map("x", 2.0), map("x", "two")));
+        List<Object> outputs = asList("low", "low", "new");
+        for (String call : asList("CALL ml.addBatch('partial',{inputs},{outputs})", "CALL ml.addColumns('partial',{columns},{outputs})")) {
+            try {
+                db.execute(call, map("inputs", inputs, "columns", map("x", asList(1.0, 2.0, "two")), "outputs", outputs)).close();
+                fail("bad last row accepted");
+            } catch (QueryExecutionException expected) {
+                // nothing added, retrying the corrected batch adds no duplicates
+            }
+        }
+        try {
+            db.execute("CALL ml.addBatch('partial',{inputs},{outputs})", map("inputs", asList(map("x", 1.0), map("z", 2.0)), "outputs", asList("low", "low"))).close();
+            fail("unknown input accepted");
+        } catch (QueryExecutionException expected) {
+            // unknown key in the last row
+        }
+        Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.info('partial')").columnAs("info").next();
+        assertEquals(100L, info.get("trainingSets"));
+        // the class of the rejected rows wasn't added either
+        MLModel<?> model = MLModel.from("partial");
+        assertEquals(asList("low", "high"), model.rows.dictionary(model.offsets.get("y")).values());
+        db.execute("CALL ml.remove('partial')").close();
+    }
+
+    @Test
+    public void addFromLabel() throws Exception {
+        Map<String, String> types = stringMap("sepalLength", "float", "sepalWidth", "float", "petalLength", "float", "petalWidth", "float", "iris", "class");
+        db.execute("CALL ml.create({model},{types},{output})", map("model", "iris-graph", "types", types, "output", "iris")).close();
+
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            Map<String, Object> props = map("sepalLength", csv.getDouble(0), "sepal_width", csv.getDouble(1), "petalLength", csv.getDouble(2), "petalWidth", csv.getDouble(3), "kind", csv.get(4));
+            db.execute("CREATE (:Flower {props})", map("props", props)).close();
+        }
+        csv.close();
+        db.execute("CREATE (:Flower {sepalLength: 1.0})").close();
+
+        Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.addFromLabel('iris-graph','Flower',{sepalWidth:'sepal_width'},'kind')").columnAs("info").next();
+        assertEquals(150L, info.get("added"));
+        assertEquals(1L, info.get("skipped"));
+        assertEquals(150L, info.get("trainingSets"));
+
+        Object predicted = db.execute("CALL ml.predict('iris-graph',{sepalLength:5.1, sepalWidth:3.5, petalLength:1.4, petalWidth:0.2})").columnAs("value").next();
+        assertEquals("Iris-setosa", predicted);
+
+        try {
+            db.execute("CALL ml.addFromLabel('iris-graph','Flower',{sepalWidth:'sepal_widht'},'kind')").close();
+            fail("unknown property key accepted");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("sepal_widht"));
+        }
+        Map<String, Object> none = (Map<String, Object>) db.execute("CALL ml.addFromLabel('iris-graph','Fruit',{sepalWidth:'sepal_width'},'kind')").columnAs("info").next();
+        assertEquals(0L, none.get("added"));
+
+        // an unparsable value on the last node adds none of the nodes before it
+        db.execute("CREATE (:Flower {sepalLength: 'long', sepal_width: 1.0, petalLength: 1.0, petalWidth: 1.0, kind: 'Iris-setosa'})").close();
+        try {
+            db.execute("CALL ml.addFromLabel('iris-graph','Flower',{sepalWidth:'sepal_width'},'kind')").close();
+            fail("unparsable property accepted");
+        } catch (QueryExecutionException expected) {
+            // nothing added
+        }
+        assertEquals(150L, ((Map<String, Object>) db.execute("CALL ml.info('iris-graph')").columnAs("info").next()).get("trainingSets"));
+        db.execute("CALL ml.remove('iris-graph')").close();
+    }
+
+    @Test
+    public void predictNodes() throws Exception {
+        Map<String, String> types = stringMap("sepalLength", "float", "sepalWidth", "float", "petalLength", "float", "petalWidth", "float", "iris", "class");
+        db.execute("CALL ml.create({model},{types},{output})", map("model", "iris-nodes", "types", types, "output", "iris")).close();
+
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            Map<String, Object> props = map("sepalLength", csv.getDouble(0), "sepal_width", csv.getDouble(1), "petalLength", csv.getDouble(2), "petalWidth", csv.getDouble(3), "kind", csv.get(4));
+            db.execute("CREATE (:Flower {props})", map("props", props)).close();
+        }
+        csv.close();
+        db.execute("CREATE (:Flower {sepalLength: 1.0})").close();
+        db.execute("CALL ml.addFromLabel('iris-nodes','Flower',{sepalWidth:'sepal_width'},'kind')").close();
+
+        Map<String, Object> counts = Iterators.single(db.execute("CALL ml.predictNodes('iris-nodes','Flower',{sepalWidth:'sepal_width'}) YIELD node, value " +
+                "RETURN count(*) AS total, sum(CASE WHEN value = node.kind THEN 1 ELSE 0 END) AS correct, sum(CASE WHEN value IS NULL THEN 1 ELSE 0 END) AS missing"));
+        assertEquals(151L, counts.get("total"));
+        assertEquals(1L, counts.get("missing"));
+        assertEquals(150d, ((Long) counts.get("correct")).doubleValue(), 3d);
+
+        List<Object> predicted = Iterators.asList(db.execute("MATCH (f:Flower) WHERE exists(f.kind) WITH f ORDER BY id(f) LIMIT 2 WITH collect(f) AS nodes " +
+                "CALL ml.predictNodes('iris-nodes',nodes,{sepalWidth:'sepal_width'}) YIELD value RETURN value").columnAs("value"));
+        assertEquals(asList("Iris-setosa", "Iris-setosa"), predicted);
+        db.execute("CALL ml.remove('iris-nodes')").close();
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        Map<String, String> types = stringMap("sepal-length", "float", "sepal-width", "float", "petal-length", "float", "petal-width", "float", "iris", "class");
+        db.execute("CALL ml.create({model},{types},{output})", map("model", "iris-saved", "types", types, "output", "iris")).close();
+
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        List<Object> outputs = new ArrayList<>();
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            inputs.add(map("sepal-length", csv.getDouble(0), "sepal-width", csv.getDouble(1), "petal-length", csv.getDouble(2), "petal-width", csv.getDouble(3)));
+            outputs.add(csv.get(4));
+        }
+        csv.close();
+        db.execute("CALL ml.addBatch('iris-saved',{inputs},{outputs})", map("inputs", inputs, "outputs", outputs)).close();
+        db.execute("CALL ml.train('iris-saved')").close();
+        List<Object> predictions = Iterators.asList(db.execute("CALL ml.predictBatch('iris-saved',{inputs})", map("inputs", inputs)).columnAs("value"));
+
+        File file = File.createTempFile("iris-saved", ModelFile.EXTENSION);
+        db.execute("CALL ml.save('iris-saved',{path})", map("path", file.getPath())).close();
+        db.execute("CALL ml.remove('iris-saved')").close();
+        Map<String, Object> row = Iterators.single(db.execute("CALL ml.load({path})", map("path", file.getPath())));
+        assertEquals("ready", row.get("state"));
+
+        List<Object> loaded = Iterators.asList(db.execute("CALL ml.predictBatch('iris-saved',{inputs})", map("inputs", inputs)).columnAs("value"));
+        assertEquals(predictions, loaded);
+        file.delete();
+        db.execute("CALL ml.remove('iris-saved')").close();
+    }
+
+    @Test
+    public void autoPersist() throws Exception {
+        db.shutdown();
+        File directory = new File(System.getProperty("java.io.tmpdir"), "ml-persist-" + System.nanoTime());
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(MLSettings.persistDirectory, directory.getPath()).newGraphDatabase();
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class).registerProcedure(ML.class);
+
+        Map<String, String> types = stringMap("x", "float", "y", "class");
+        db.execute("CALL ml.create('persisted',{types},'y')", map("types", types)).close();
+        addLinearRows("persisted");
+        db.execute("CALL ml.train('persisted')").close();
+        assertTrue(ModelFile.fileFor(directory, "persisted").isFile());
+
+        // simulate a restart, the model is only gone from memory
+        db.shutdown();
+        MLModel.models.remove("persisted").close();
+        db = new TestGraphDatabaseFactory().newImpermanentDatabaseBuilder().setConfig(MLSettings.persistDirectory, directory.getPath()).newGraphDatabase();
+        ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(Procedures.class).registerProcedure(ML.class);
+
+        Map<String, Object> info = Iterators.single(db.execute("CALL ml.info('persisted')"));
+        assertEquals("ready", info.get("state"));
+        assertEquals(100L, ((Map<String, Object>) info.get("info")).get("trainedSets"));
+        assertEquals("low", db.execute("CALL ml.predict('persisted',{x:10.0})").columnAs("value").next());
+        // the 100 rows it was trained on are gone, retraining on the new row alone must not replace it
+        db.execute("CALL ml.add('persisted',{x:1.0},'low')").close();
+        try {
+            db.execute("CALL ml.train('persisted')").close();
+            fail("retrained without the rows of the snapshot");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("without the 100 rows it was trained on"));
+        }
+        assertEquals(100L, ((Map<String, Object>) db.execute("CALL ml.info('persisted')").columnAs("info").next()).get("trainedSets"));
+        db.execute("CALL ml.remove('persisted')").close();
+        assertFalse(ModelFile.fileFor(directory, "persisted").exists());
+        directory.delete();
+    }
+
+    @Test
+    public void infoFromTrainingSummary() throws Exception {
+        File file = trainAndSave("summary");
+        try {
+            Map<String, Object> info = (Map<String, Object>) Iterators.single(db.execute("CALL ml.info('summary')")).get("info");
+            assertTrue(info.get("trainingError") instanceof Double);
+            assertTrue(info.get("selectedMethod").toString().contains("BasicNetwork"));
+            MLModel.Snapshot snapshot = MLModel.from("summary").snapshot();
+            assertEquals(snapshot.validationError, info.get("validationError"));
+            // computed once at the end of the training
+            db.execute("CALL ml.add('summary',{x:1.0},'low')").close();
+            assertSame(snapshot.summary, MLModel.from("summary").<MLModel.Snapshot>snapshot().summary);
+            db.execute("CALL ml.remove('summary')").close();
+
+            db.execute("CALL ml.load({path})", map("path", file.getPath())).close();
+            info = (Map<String, Object>) Iterators.single(db.execute("CALL ml.info('summary')")).get("info");
+            assertFalse(info.containsKey("trainingError"));
+            assertTrue(info.containsKey("normalization"));
+        } finally {
+            db.execute("CALL ml.remove('summary')").close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectBeyondMemoryBudget() throws Exception {
+        db.execute("CALL ml.create('memory',{types},'y',{config})", map("types", stringMap("x", "float", "y", "class"), "config", map("framework", "dl4j", "epochs", 2))).close();
+        addLinearRows("memory");
+        db.execute("CALL ml.train('memory')").close();
+        Map<String, Object> info = (Map<String, Object>) Iterators.single(db.execute("CALL ml.info('memory')")).get("info");
+        assertTrue((Long) info.get("heapBytes") > 100 * 12);
+        assertTrue((Long) info.get("offHeapBytes") > 0);
+
+        ModelRegistry.memoryBudget = ModelRegistry.used();
+        ModelRegistry.memoryPolicy = ModelRegistry.MemoryPolicy.reject;
+        try {
+            db.execute("CALL ml.add('memory',{x:1.0},'low')").close();
+            fail("add beyond the memory budget accepted");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Memory budget"));
+        } finally {
+            ModelRegistry.memoryBudget = -1;
+            ModelRegistry.memoryPolicy = ModelRegistry.MemoryPolicy.evict;
+        }
+        assertEquals("low", db.execute("CALL ml.predict('memory',{x:10.0})").columnAs("value").next());
+        db.execute("CALL ml.remove('memory')").close();
+    }
+
+    @Test
+    public void loadLazilyWithinMemoryBudget() throws Exception {
+        File first = trainAndSave("lazy-1");
+        File second = trainAndSave("lazy-2");
+        db.execute("CALL ml.remove('lazy-1')").close();
+        db.execute("CALL ml.remove('lazy-2')").close();
+
+        db.execute("CALL ml.load({path})", map("path", first.getPath())).close();
+        db.execute("CALL ml.load({path})", map("path", second.getPath())).close();
+        long loaded = Math.max(MLModel.models.get("lazy-1").memoryBytes(), MLModel.models.get("lazy-2").memoryBytes());
+        // unload both again, they stay registered
+        MLModel.models.remove("lazy-1").close();
+        MLModel.models.remove("lazy-2").close();
+
+        ModelRegistry.memoryBudget = ModelRegistry.used() + loaded;
+        try {
+            assertEquals("low", db.execute("CALL ml.predict('lazy-1',{x:10.0})").columnAs("value").next());
+            assertEquals("high", db.execute("CALL ml.predict('lazy-2',{x:90.0})").columnAs("value").next());
+            assertFalse(MLModel.models.containsKey("lazy-1"));
+            assertTrue(ModelRegistry.contains("lazy-1"));
+
+            assertEquals("low", db.execute("CALL ml.predict('lazy-1',{x:10.0})").columnAs("value").next());
+            assertTrue(MLModel.models.containsKey("lazy-1"));
+            assertFalse(MLModel.models.containsKey("lazy-2"));
+        } finally {
+            ModelRegistry.memoryBudget = -1;
+            db.execute("CALL ml.remove('lazy-1')").close();
+            db.execute("CALL ml.remove('lazy-2')").close();
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void evictOnlyIdleModels() throws Exception {
+        File file = trainAndSave("idle");
+        try {
+            MLModel<?> model = MLModel.from("idle");
+            // an add in flight keeps the model loaded
+            model.enter();
+            assertFalse(model.evict());
+            model.exit();
+            assertTrue(model.evict());
+            assertFalse(MLModel.models.containsKey("idle"));
+            try {
+                model.add(map("x", 1.0), "low");
+                fail("add on an evicted model accepted");
+            } catch (IllegalStateException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains("idle"));
+            }
+        } finally {
+            db.execute("CALL ml.remove('idle')").close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void trainAsync() throws Exception {
+        db.execute("CALL ml.create('async',{types},'y')", map("types", stringMap("x", "float", "y", "class"))).close();
+        addLinearRows("async");
+
+        Map<String, Object> job = Iterators.single(db.execute("CALL ml.trainAsync('async')"));
+        long id = (Long) job.get("id");
+        long timeout = System.currentTimeMillis() + 60_000;
+        while (!"done".equals(job.get("status")) && !"failed".equals(job.get("status")) && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+            job = Iterators.single(db.execute("CALL ml.job({id})", map("id", id)));
+        }
+        assertEquals("done", job.get("status"));
+        assertEquals(1d, job.get("progress"));
+        assertTrue(Iterators.asList(db.execute("CALL ml.jobs() YIELD id RETURN id").columnAs("id")).contains(id));
+        assertEquals("low", db.execute("CALL ml.predict('async',{x:10.0})").columnAs("value").next());
+
+        // the executor stops with the database and starts again with the next one
+        MLModel<?> model = MLModel.from("async");
+        db.shutdown();
+        try {
+            TrainingJobs.submit(model);
+            fail("submitted a job after the database stopped");
+        } catch (IllegalStateException expected) {
+            // no executor
+        }
+        setUp();
+        assertEquals(null, Iterators.single(db.execute("CALL ml.trainAsync('async')")).get("error"));
+        db.execute("CALL ml.remove('async')").close();
+    }
+
+    @Test
+    public void addConcurrently() throws Exception {
+        db.execute("CALL ml.create('concurrent',{types},'y')", map("types", stringMap("x", "float", "y", "class"))).close();
+        int threads = 8, perThread = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> adds = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            adds.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.add('concurrent',{inputs},{output})",
+                            map("inputs", map("x", (double) i), "output", i < 50 ? "low" : "high")).columnAs("info").next();
+                    assertTrue((Long) info.get("trainingSets") > i);
+                }
+            }));
+        }
+        for (Future<?> add : adds) {
+            add.get();
+        }
+        executor.shutdown();
+        // the results of ml.add count the rows buffered in the stripes without merging them
+        assertEquals(0, MLModel.from("concurrent").rows.merged());
+        Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.info('concurrent')").columnAs("info").next();
+        assertEquals((long) threads * perThread, info.get("trainingSets"));
+        info = (Map<String, Object>) db.execute("CALL ml.train('concurrent')").columnAs("info").next();
+        assertEquals((long) threads * perThread, info.get("trainedSets"));
+        db.execute("CALL ml.remove('concurrent')").close();
+    }
+
+    @Test
+    public void retrainWhileServing() throws Exception {
+        for (String framework : asList("encog", "dl4j")) {
+            db.execute("CALL ml.create('hot',{types},'y',{config})", map("types", stringMap("x", "float", "y", "class"), "config", map("framework", framework, "epochs", 20))).close();
+            addLinearRows("hot");
+            Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.train('hot')").columnAs("info").next();
+            assertEquals(1L, info.get("version"));
+
+            // more data for a ready model, predictions keep using version 1 until the retrain is published
+            addLinearRows("hot");
+            // a class version 1 wasn't trained on
+            db.execute("CALL ml.add('hot',{x:1000.0},'huge')").close();
+            MLModel<?> model = MLModel.from("hot");
+            assertEquals(framework, "low", model.predict(map("x", 10d)));
+            assertEquals(framework, asList("low", "high"), Iterators.asList(db.execute("CALL ml.predictBatch('hot',[{x:10.0},{x:90.0}])").columnAs("value")));
+            AtomicBoolean retrained = new AtomicBoolean();
+            AtomicInteger predictions = new AtomicInteger();
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Future<?> scoring = executor.submit(() -> {
+                while (!retrained.get()) {
+                    assertEquals("low", model.predict(map("x", 10d)));
+                    predictions.incrementAndGet();
+                }
+            });
+            info = (Map<String, Object>) db.execute("CALL ml.train('hot')").columnAs("info").next();
+            retrained.set(true);
+            scoring.get();
+            executor.shutdown();
+            assertTrue(predictions.get() > 0);
+            assertEquals(2L, info.get("version"));
+            assertEquals(201L, info.get("trainedSets"));
+            assertEquals("low", db.execute("CALL ml.predict('hot',{x:10.0})").columnAs("value").next());
+            db.execute("CALL ml.remove('hot')").close();
+        }
+    }
+
+    @Test
+    public void tune() throws Exception {
+        db.execute("CALL ml.create('tuned',{types},'y')", map("types", stringMap("x", "float", "y", "class"))).close();
+        addLinearRows("tuned");
+
+        List<Map<String, Object>> results = Iterators.asList(db.execute("CALL ml.tune('tuned',{searchSpace},{parallelism:4})",
+                map("searchSpace", map("method", asList("ffd", "svm"), "folds", asList(3, 5)))));
+        assertEquals(4, results.size());
+        Map<String, Object> best = null;
+        for (Map<String, Object> result : results) {
+            assertEquals(null, result.get("error"));
+            if (best == null || (Double) result.get("validationError") < (Double) best.get("validationError")) best = result;
+        }
+        Map<String, Object> info = (Map<String, Object>) db.execute("CALL ml.info('tuned')").columnAs("info").next();
+        assertEquals(1L, info.get("version"));
+        assertEquals(((Map<String, Object>) best.get("params")).get("method"), info.get("methodName").toString());
+        assertEquals("low", db.execute("CALL ml.predict('tuned',{x:10.0})").columnAs("value").next());
+
+        assertEquals(1, Iterators.count(db.execute("CALL ml.tune('tuned',{searchSpace},{budget:1})",
+                map("searchSpace", map("folds", asList(3, 4, 5))))));
+
+        // a consumer that stops early promotes none of the candidates
+        Object version = ((Map<String, Object>) db.execute("CALL ml.info('tuned')").columnAs("info").next()).get("version");
+        assertEquals(1, Iterators.count(db.execute("CALL ml.tune('tuned',{searchSpace},{parallelism:1}) YIELD candidate RETURN candidate LIMIT 1",
+                map("searchSpace", map("folds", asList(3, 4, 5))))));
+        awaitIdle();
+        assertEquals(version, ((Map<String, Object>) db.execute("CALL ml.info('tuned')").columnAs("info").next()).get("version"));
+
+        // a candidate trained before more rows were added and trained doesn't roll the model back
+        MLModel<?> model = MLModel.from("tuned");
+        MLModel.Snapshot candidate = model.snapshot();
+        addLinearRows("tuned");
+        db.execute("CALL ml.train('tuned')").close();
+        try {
+            model.promote(candidate, model.config, model.methodName);
+            fail("promoted a candidate trained on fewer rows");
+        } catch (IllegalStateException expected) {
+            assertEquals(200, model.snapshot().trainingSets);
+        }
+
+        // closing the stream early cancels the remaining candidates and releases the model
+        long trained = model.snapshot().version;
+        try (Stream<ML.TuneResult> stream = Tuning.tune(model, map("folds", asList(3, 4, 5, 6, 7, 8)), map("parallelism", 1), null)) {
+            assertNotNull(stream.iterator().next());
+        }
+        awaitIdle();
+        assertEquals(trained, model.snapshot().version);
+        assertTrue(model.evict());
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        for (int i = 0; i < 500 && !Iterators.single(db.execute("CALL ml.governor()")).get("running").equals(0L); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0L, Iterators.single(db.execute("CALL ml.governor()")).get("running"));
+    }
+
+    @Test
+    public void governor() throws Exception {
+        TrainingGovernor.configure(1, 1, 2);
+        try {
+            for (String framework : asList("encog", "dl4j")) {
+                db.execute("CALL ml.create({model},{types},'y',{config})", map("model", framework, "types", stringMap("x", "float", "y", "class"), "config", map("framework", framework, "epochs", 5))).close();
+                addLinearRows(framework);
+            }
+            // the candidates wait for each other with a limit of one training
+            assertEquals(2, Iterators.count(db.execute("CALL ml.tune('encog',{searchSpace},{parallelism:2})", map("searchSpace", map("folds", asList(3, 5))))));
+            db.execute("CALL ml.train('dl4j')").close();
+
+            Map<String, Object> usage = Iterators.single(db.execute("CALL ml.governor()"));
+            assertEquals(1L, usage.get("maxTrainings"));
+            assertEquals(0L, usage.get("running"));
+            assertEquals(0L, usage.get("waiting"));
+            assertEquals(1L, usage.get("encogThreads"));
+            assertEquals(2L, usage.get("nd4jThreads"));
+            assertEquals(Collections.emptyList(), usage.get("trainings"));
+            // the pools trainings start themselves are clamped too
+            assertEquals(1, TrainingGovernor.tuningParallelism(2));
+            assertEquals(2, TrainingGovernor.nd4jWorkers(4));
+            db.execute("CALL ml.remove('encog')").close();
+            db.execute("CALL ml.remove('dl4j')").close();
+        } finally {
+            TrainingGovernor.configure(0, 0, 0);
+        }
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        db.execute("CALL ml.create('metrics',{types},'y')", map("types", stringMap("x", "float", "y", "class"))).close();
+        List<Map<String, Object>> inputs = addLinearRows("metrics");
+        db.execute("CALL ml.add('metrics',{x:1.0},'low')").close();
+        db.execute("CALL ml.train('metrics')").close();
+        db.execute("CALL ml.predict('metrics',{x:10.0})").close();
+        assertEquals(100, Iterators.count(db.execute("CALL ml.predictBatch('metrics',{inputs})", map("inputs", inputs))));
+        try {
+            db.execute("CALL ml.add('metrics',{x:'none'},'low')").close();
+            fail("non-numeric input accepted");
+        } catch (QueryExecutionException expected) {
+            // counted as an error
+        }
+
+        Map<String, Map<String, Object>> metrics = new HashMap<>();
+        db.execute("CALL ml.metrics('metrics')").forEachRemaining(row -> metrics.put((String) row.get("operation"), row));
+        assertEquals(asList(3L, 1L, 101L), asList(metrics.get("add").get("calls"), metrics.get("add").get("errors"), metrics.get("add").get("rows")));
+        assertEquals(asList(1L, 0L, 101L), asList(metrics.get("train").get("calls"), metrics.get("train").get("errors"), metrics.get("train").get("rows")));
+        assertEquals(asList(1L, 0L, 1L), asList(metrics.get("predict").get("calls"), metrics.get("predict").get("errors"), metrics.get("predict").get("rows")));
+        assertEquals(100L, metrics.get("predictBatch").get("rows"));
+        Map<String, Object> train = metrics.get("train");
+        assertTrue((Double) train.get("p50") > 0);
+        assertTrue((Double) train.get("p50") <= (Double) train.get("p99"));
+        assertTrue((Double) train.get("p99") <= (Double) train.get("max"));
+        db.execute("CALL ml.remove('metrics')").close();
+    }
+
+    @Test
+    public void trainingLog() throws Exception {
+        for (String framework : asList("encog", "dl4j")) {
+            db.execute("CALL ml.create({model},{types},'y',{config})", map("model", framework, "types", stringMap("x", "float", "y", "class"), "config", map("framework", framework, "epochs", 3, "folds", 4))).close();
+            addLinearRows(framework);
+            db.execute("CALL ml.train({model})", map("model", framework)).close();
+        }
+
+        List<Map<String, Object>> dl4j = Iterators.asList(db.execute("CALL ml.trainingLog('dl4j')"));
+        assertEquals(asList("epoch", "epoch", "epoch", "validation"), dl4j.stream().map(e -> e.get("phase")).collect(Collectors.toList()));
+        assertEquals(asList(1L, 2L, 3L, 1L), dl4j.stream().map(e -> e.get("step")).collect(Collectors.toList()));
+        assertTrue((Double) dl4j.get(0).get("samplesPerSecond") > 0);
+        Map<String, Object> validation = (Map<String, Object>) dl4j.get(3).get("metrics");
+        assertEquals(1d - (Double) validation.get("accuracy"), (Double) validation.get("validationError"), 1e-9);
+        assertEquals(validation.get("validationError"), dl4j.get(3).get("score"));
+
+        List<Map<String, Object>> encog = Iterators.asList(db.execute("CALL ml.trainingLog('encog')"));
+        assertEquals(5, encog.size());
+        assertEquals(4L, encog.stream().filter(e -> e.get("phase").equals("fold")).count());
+        assertEquals("validation", encog.get(4).get("phase"));
+        assertEquals(1, encog.stream().map(e -> e.get("training")).distinct().count());
+        db.execute("CALL ml.remove('encog')").close();
+        db.execute("CALL ml.remove('dl4j')").close();
+    }
+
+    @Test
+    public void cancelTraining() throws Exception {
+        db.execute("CALL ml.create('timeout',{types},'y',{config})", map("types", stringMap("x", "float", "y", "class"), "config", map("framework", "dl4j", "epochs", 1_000_000, "maxTrainingMillis", 200))).close();
+        addLinearRows("timeout");
+        try {
+            db.execute("CALL ml.train('timeout')").close();
+            fail("training should time out");
+        } catch (QueryExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("maxTrainingMillis"));
+        }
+        assertEquals("training", db.execute("CALL ml.info('timeout')").columnAs("state").next());
+        db.execute("CALL ml.remove('timeout')").close();
+
+        db.execute("CALL ml.create('killed',{types},'y',{config})", map("types", stringMap("x", "float", "y", "class"), "config", map("framework", "dl4j", "epochs", 1_000_000))).close();
+        addLinearRows("killed");
+        AtomicReference<Transaction> tx = new AtomicReference<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> training = executor.submit(() -> {
+            try (Transaction transaction = db.beginTx()) {
+                tx.set(transaction);
+                db.execute("CALL ml.train('killed')").close();
+                transaction.success();
+            }
+        });
+        while (tx.get() == null || Iterators.single(db.execute("CALL ml.governor()")).get("running").equals(0L)) {
+            Thread.sleep(10);
+        }
+        tx.get().terminate();
+        try {
+            training.get(30, TimeUnit.SECONDS);
+            fail("training should be terminated");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("terminated"));
+        }
+        executor.shutdown();
+        assertEquals(0L, Iterators.single(db.execute("CALL ml.governor()")).get("running"));
+        assertEquals("training", db.execute("CALL ml.info('killed')").columnAs("state").next());
+        db.execute("CALL ml.remove('killed')").close();
+    }
+
+    /**
+     * Adds 100 rows of {@code x} from 0 to 99, labelled {@code low} below 50 and {@code high} above.
+     *
+     * @return the inputs of the rows
+     */
+    private List<Map<String, Object>> addLinearRows(String model) {
+        List<Map<String, Object>> inputs = new ArrayList<>();
+        List<Object> outputs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            inputs.add(map("x", (double) i));
+            outputs.add(i < 50 ? "low" : "high");
+        }
+        db.execute("CALL ml.addBatch({model},{inputs},{outputs})", map("model", model, "inputs", inputs, "outputs", outputs)).close();
+        return inputs;
+    }
+
+    private File trainAndSave(String model) throws Exception {
+        db.execute("CALL ml.create({model},{types},'y')", map("model", model, "types", stringMap("x", "float", "y", "class"))).close();
+        addLinearRows(model);
+        db.execute("CALL ml.train({model})", map("model", model)).close();
+        File file = File.createTempFile(model, ModelFile.EXTENSION);
+        db.execute("CALL ml.save({model},{path})", map("model", model, "path", file.getPath())).close();
+        return file;
+    }
 }
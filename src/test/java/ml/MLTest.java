@@ -1,7 +1,11 @@
 package ml;
 
+import org.encog.ml.data.basic.BasicMLData;
+import org.encog.ml.data.versatile.NormalizationHelper;
+import org.encog.ml.data.versatile.columns.ColumnDefinition;
 import org.encog.util.csv.CSVFormat;
 import org.encog.util.csv.ReadCSV;
+import org.junit.After;
 import org.junit.Test;
 import org.neo4j.helpers.collection.MapUtil;
 
@@ -19,6 +23,12 @@ import static org.neo4j.helpers.collection.MapUtil.stringMap;
  * @since 19.07.17
  */
 public class MLTest {
+    @After
+    public void tearDown() throws Exception {
+        // predict leaves its model registered, MLProcedureTest creates one with the same name in this JVM
+        MLModel.remove("iris");
+    }
+
     @Test
     public void predict() throws Exception {
         ML ml = new ML();
@@ -47,4 +57,92 @@ public class MLTest {
         assertEquals(total,correct,3d);
     }
 
+    @Test
+    public void predictWithParallelFolds() throws Exception {
+        Map<String, String> types = stringMap("sepal-length", "float", "sepal-width", "float", "petal-length", "float", "petal-width", "float", "iris", "class");
+        EncogMLModel model = (EncogMLModel) MLModel.create("iris-folds", types, "iris", map("folds", 5, "parallelism", 5));
+
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            model.add(map("sepal-length", csv.get(0), "sepal-width", csv.get(1), "petal-length", csv.get(2), "petal-width", csv.get(3)), csv.get(4));
+        }
+        csv.close();
+        model.train();
+
+        csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        int total = 0, correct = 0;
+        while (csv.next()) {
+            total++;
+            if (csv.get(4).equals(model.predict(map("sepal-length", csv.get(0), "sepal-width", csv.get(1), "petal-length", csv.get(2), "petal-width", csv.get(3))))) correct++;
+        }
+        csv.close();
+        MLModel.remove("iris-folds");
+        assertEquals(total, correct, 3d);
+    }
+
+    @Test
+    public void encogDoesNotCoalesce() throws Exception {
+        // Encog predicts row by row, coalescing would only add latency
+        MLModel<?> model = MLModel.create("iris-coalesced", stringMap("x", "float", "y", "class"), "y", map("coalesceMicros", 2000L));
+        assertNull(model.coalescer);
+        MLModel.remove("iris-coalesced");
+    }
+
+    @Test
+    public void typedAndStringInputsPredictTheSame() throws Exception {
+        Map<String, String> types = stringMap("sepal-length", "float", "sepal-width", "float", "petal-length", "float", "petal-width", "float", "iris", "class");
+        EncogMLModel model = (EncogMLModel) MLModel.create("iris-compiled", types, "iris", Collections.emptyMap());
+
+        File irisFile = new File(getClass().getResource("/iris.csv").getFile());
+        ReadCSV csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            model.add(map("sepal-length", csv.get(0), "sepal-width", csv.get(1), "petal-length", csv.get(2), "petal-width", csv.get(3)), csv.get(4));
+        }
+        csv.close();
+        model.train();
+
+        csv = new ReadCSV(irisFile, false, CSVFormat.DECIMAL_POINT);
+        while (csv.next()) {
+            Map<String, Object> numbers = map("sepal-length", csv.getDouble(0), "sepal-width", csv.getDouble(1), "petal-length", csv.getDouble(2), "petal-width", csv.getDouble(3));
+            Map<String, Object> strings = map("sepal-length", csv.get(0), "sepal-width", csv.get(1), "petal-length", csv.get(2), "petal-width", csv.get(3));
+            Object predicted = model.predict(numbers);
+            assertEquals(predicted, model.predict(strings));
+            assertEquals(predicted, model.predictBatch(Collections.singletonList(strings)).findFirst().get());
+        }
+        csv.close();
+        MLModel.remove("iris-compiled");
+    }
+
+    @Test
+    public void compiledPredictionMatchesEncog() throws Exception {
+        Map<String, String> types = stringMap("x", "float", "size", "order", "color", "class", "y", "class");
+        EncogMLModel model = (EncogMLModel) MLModel.create("mixed", types, "y", Collections.emptyMap());
+        String[] colors = {"red", "green", "blue"};
+        for (int i = 0; i < 300; i++) {
+            double x = i % 10 + (i % 4) * 0.25;
+            long size = i % 3 + 1;
+            int color = i % 7 % 3;
+            model.add(map("x", x, "size", size, "color", colors[color]), x + size * 2 + color * 3 > 10 ? "high" : "low");
+        }
+        model.train();
+
+        EncogMLModel.Trained trained = model.snapshot();
+        NormalizationHelper helper = trained.helper;
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> inputs = map("x", i % 12 + 0.1, "size", (long) (i % 3 + 1), "color", colors[i % 3]);
+            // the generic Encog path from the source values in the order of the input columns
+            String[] line = new String[helper.getInputColumns().size()];
+            for (int c = 0; c < line.length; c++) {
+                ColumnDefinition col = helper.getInputColumns().get(c);
+                Object value = inputs.get(col.getName());
+                line[c] = value instanceof Number ? RowStore.format(((Number) value).doubleValue()) : value.toString();
+            }
+            double[] normalized = new double[helper.calculateNormalizedInputCount()];
+            helper.normalizeInputVector(line, normalized, false);
+            String expected = helper.denormalizeOutputVectorToString(trained.method.compute(new BasicMLData(normalized)))[0];
+            assertEquals(inputs.toString(), expected, model.predict(inputs));
+        }
+        MLModel.remove("mixed");
+    }
 }
@@ -0,0 +1,103 @@
+package ml;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.neo4j.helpers.collection.MapUtil.map;
+
+/**
+ * @author mh
+ * @since 17.10.26
+ */
+public class RowStoreTest {
+
+    private RowStore store() {
+        Map<String, MLModel.DataType> types = new HashMap<>();
+        types.put("x", MLModel.DataType._float);
+        types.put("rank", MLModel.DataType._order);
+        types.put("kind", MLModel.DataType._class);
+        Map<String, Integer> offsets = new HashMap<>();
+        offsets.put("x", 0);
+        offsets.put("rank", 1);
+        offsets.put("kind", 2);
+        return new RowStore(types, offsets);
+    }
+
+    @Test
+    public void addAcrossChunks() throws Exception {
+        RowStore store = store();
+        int rows = RowStore.CHUNK_SIZE * 3 + 5;
+        for (int i = 0; i < rows; i++) {
+            store.add(map("x", i / 2d, "rank", String.valueOf(i % 3)), "k" + (i % 4), 2);
+        }
+        assertEquals(rows, store.size());
+        assertEquals(4, store.dictionary(2).size());
+        int last = rows - 1;
+        assertEquals(last / 2d, store.getDouble(last, 0), 0d);
+        assertEquals(String.valueOf(last % 3), store.getString(last, 1));
+        assertEquals("k" + (last % 4), store.getString(last, 2));
+        assertEquals(last % 4, store.getCode(last, 2));
+    }
+
+    @Test
+    public void spillPastThreshold() throws Exception {
+        Map<String, MLModel.DataType> types = new HashMap<>();
+        types.put("x", MLModel.DataType._float);
+        types.put("kind", MLModel.DataType._class);
+        Map<String, Integer> offsets = new HashMap<>();
+        offsets.put("x", 0);
+        offsets.put("kind", 1);
+        RowStore store = new RowStore(types, offsets, 10, null, bytes -> {});
+        for (int i = 0; i < 100; i++) {
+            store.add(map("x", i), i % 2 == 0 ? "even" : "odd", 1);
+        }
+        assertEquals(100, store.size());
+        assertEquals(90, store.spilled());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, store.getDouble(i, 0), 0d);
+            assertEquals(i % 2 == 0 ? "even" : "odd", store.getString(i, 1));
+        }
+        store.close();
+    }
+
+    @Test
+    public void concurrentAdds() throws Exception {
+        RowStore store = store();
+        int threads = 8, perThread = RowStore.STRIPE_ROWS * 5 + 7;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    store.add(map("x", (double) thread, "rank", "1"), "k" + thread, 2);
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        assertEquals(threads * perThread, store.size());
+        assertEquals(threads, store.dictionary(2).size());
+        int[] counts = new int[threads];
+        for (int row = 0; row < store.size(); row++) {
+            int thread = (int) store.getDouble(row, 0);
+            assertEquals("k" + thread, store.getString(row, 2));
+            counts[thread]++;
+        }
+        for (int count : counts) assertEquals(perThread, count);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownInput() throws Exception {
+        store().add(map("x", 1, "other", 2), "a", 2);
+    }
+}